@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calculates the timeout of the new transactions of each call site from the latency that was
+ * observed at the same call site. The timeout is the configured multiple of the 99th percentile of
+ * the duration of the transactions, clamped between the configured minimum and maximum. Until
+ * enough transactions are observed, the maximum timeout is used.
+ *
+ * <p>
+ * A transaction that is rolled back by the transaction manager at commit might have been timed
+ * out, so its real duration is unknown. Such a transaction is observed as if it lasted at least as
+ * long as the current timeout of the call site. Otherwise a call site whose latency rises above a
+ * learned timeout would only have transactions that time out and the timeout could never grow
+ * again. The transactions whose callback failed are observed with their real duration, so the
+ * business failures of a call site do not push its timeout up to the maximum.
+ *
+ * <p>
+ * The call sites are the operations of an {@link OperationPolicyRegistry} that do not have an
+ * explicit timeout in their policy.
+ */
+public class AdaptiveTransactionTimeouts {
+
+  /**
+   * Transaction timeout of a call site.
+   */
+  private final class CallSiteTimeout implements TransactionTimeout {
+
+    private final AtomicLong sampleCount = new AtomicLong();
+
+    private final LatencySketch latencySketch = new LatencySketch(DECAY_THRESHOLD);
+
+    private volatile int timeoutSeconds = maxTimeoutSeconds;
+
+    @Override
+    public int getTimeoutSeconds() {
+      return timeoutSeconds;
+    }
+
+    private void record(final long durationNanos) {
+      latencySketch.record(durationNanos);
+      long count = sampleCount.incrementAndGet();
+      if ((count == minSampleCount)
+          || ((count > minSampleCount) && ((count % RECALCULATION_INTERVAL) == 0))) {
+        timeoutSeconds = calculateTimeoutSeconds(latencySketch.getQuantile(QUANTILE));
+      }
+    }
+
+    @Override
+    public void transactionCompleted(final long durationNanos) {
+      record(durationNanos);
+    }
+
+    @Override
+    public void transactionRolledBack(final long durationNanos) {
+      record(Math.max(durationNanos, TimeUnit.SECONDS.toNanos(timeoutSeconds)));
+    }
+  }
+
+  /**
+   * The number of observed transactions after which the older observations of a call site count
+   * half as much as the newer ones.
+   */
+  private static final long DECAY_THRESHOLD = 100000;
+
+  private static final double QUANTILE = 0.99;
+
+  /**
+   * The timeout of a call site is recalculated after every that many observed transactions.
+   */
+  private static final int RECALCULATION_INTERVAL = 64;
+
+  private final ConcurrentMap<String, CallSiteTimeout> callSiteTimeouts =
+      new ConcurrentHashMap<String, CallSiteTimeout>();
+
+  private final int maxTimeoutSeconds;
+
+  private final int minSampleCount;
+
+  private final int minTimeoutSeconds;
+
+  private final double multiplier;
+
+  /**
+   * Constructor.
+   *
+   * @param multiplier
+   *          The timeout is the 99th percentile of the observed latency multiplied with this value.
+   * @param minTimeoutSeconds
+   *          The minimum timeout in seconds.
+   * @param maxTimeoutSeconds
+   *          The maximum timeout in seconds that is used until enough transactions are observed.
+   * @param minSampleCount
+   *          The number of transactions that have to be observed at a call site before the
+   *          timeout is calculated from the latency.
+   * @throws IllegalArgumentException
+   *           if any of the parameters is not positive or the minimum timeout is greater than the
+   *           maximum.
+   */
+  public AdaptiveTransactionTimeouts(final double multiplier, final int minTimeoutSeconds,
+      final int maxTimeoutSeconds, final int minSampleCount) {
+    if (!(multiplier > 0)) {
+      throw new IllegalArgumentException("Multiplier must be positive: " + multiplier);
+    }
+    if ((minTimeoutSeconds <= 0) || (minTimeoutSeconds > maxTimeoutSeconds)) {
+      throw new IllegalArgumentException("Invalid timeout bounds: [" + minTimeoutSeconds + ", "
+          + maxTimeoutSeconds + "]");
+    }
+    if (minSampleCount <= 0) {
+      throw new IllegalArgumentException("Minimum sample count must be positive: "
+          + minSampleCount);
+    }
+    this.multiplier = multiplier;
+    this.minTimeoutSeconds = minTimeoutSeconds;
+    this.maxTimeoutSeconds = maxTimeoutSeconds;
+    this.minSampleCount = minSampleCount;
+  }
+
+  private int calculateTimeoutSeconds(final long quantileNanos) {
+    double timeoutSeconds = Math.ceil((quantileNanos * multiplier) / TimeUnit.SECONDS.toNanos(1));
+    if (timeoutSeconds < minTimeoutSeconds) {
+      return minTimeoutSeconds;
+    }
+    if (timeoutSeconds > maxTimeoutSeconds) {
+      return maxTimeoutSeconds;
+    }
+    return (int) timeoutSeconds;
+  }
+
+  TransactionTimeout getCallSiteTimeout(final String callSite) {
+    CallSiteTimeout callSiteTimeout = callSiteTimeouts.get(callSite);
+    if (callSiteTimeout == null) {
+      callSiteTimeout = new CallSiteTimeout();
+      CallSiteTimeout existing = callSiteTimeouts.putIfAbsent(callSite, callSiteTimeout);
+      if (existing != null) {
+        callSiteTimeout = existing;
+      }
+    }
+    return callSiteTimeout;
+  }
+
+  /**
+   * Returns the approximate quantile of the observed transaction durations of a call site.
+   *
+   * @param callSite
+   *          The key of the call site.
+   * @param quantile
+   *          The quantile between 0 and 1.
+   * @return The quantile in nanoseconds or <code>-1</code> if no transaction of the call site has
+   *         been observed yet.
+   */
+  public long getLatencyQuantileNanos(final String callSite, final double quantile) {
+    CallSiteTimeout callSiteTimeout = callSiteTimeouts.get(callSite);
+    if (callSiteTimeout == null) {
+      return -1;
+    }
+    return callSiteTimeout.latencySketch.getQuantile(quantile);
+  }
+
+  /**
+   * Returns the timeout that is used for the next new transaction of a call site.
+   *
+   * @param callSite
+   *          The key of the call site.
+   * @return The timeout in seconds.
+   */
+  public int getTimeoutSeconds(final String callSite) {
+    CallSiteTimeout callSiteTimeout = callSiteTimeouts.get(callSite);
+    if (callSiteTimeout == null) {
+      return maxTimeoutSeconds;
+    }
+    return callSiteTimeout.timeoutSeconds;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor with dedicated threads that commits the transactions of
+ * {@link JTATransactionPropagator#requiredWithAsyncCommit(java.util.function.Supplier)} and
+ * {@link JTATransactionPropagator#requiresNewWithAsyncCommit(java.util.function.Supplier)}. The
+ * commits wait in a bounded queue. If the queue is full, the calling thread is blocked until there
+ * is space in the queue, so the callers cannot get ahead of the commits without limit.
+ */
+public class AsyncCommitExecutor implements Executor {
+
+  private final ThreadPoolExecutor threadPoolExecutor;
+
+  /**
+   * Constructor.
+   *
+   * @param threadCount
+   *          The number of threads that commit the transactions.
+   * @param queueCapacity
+   *          The maximum number of transactions that wait for commit.
+   */
+  public AsyncCommitExecutor(final int threadCount, final int queueCapacity) {
+    AtomicInteger threadIndex = new AtomicInteger();
+    threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+        (runnable) -> {
+          Thread thread =
+              new Thread(runnable, "transaction-commit-" + threadIndex.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        (runnable, executor) -> {
+          if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Commit executor is shut down");
+          }
+          try {
+            executor.getQueue().put(runnable);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the commit queue",
+                e);
+          }
+          // If the executor was shut down while waiting, the threads might have already exited,
+          // so the commit is taken back unless a thread picked it up in the meantime.
+          if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+            throw new RejectedExecutionException("Commit executor is shut down");
+          }
+        });
+  }
+
+  /**
+   * Waits until all queued commits are finished after {@link #shutdown()}.
+   *
+   * @param timeout
+   *          The maximum time to wait.
+   * @param unit
+   *          The unit of the timeout.
+   * @return <code>true</code> if all commits are finished, <code>false</code> if the timeout
+   *         elapsed.
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting.
+   */
+  public boolean awaitTermination(final long timeout, final TimeUnit unit)
+      throws InterruptedException {
+    return threadPoolExecutor.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    threadPoolExecutor.execute(command);
+  }
+
+  /**
+   * Returns the number of commits that wait in the queue.
+   *
+   * @return The number of waiting commits.
+   */
+  public int getQueuedCommitCount() {
+    return threadPoolExecutor.getQueue().size();
+  }
+
+  /**
+   * Stops accepting new commits. The queued commits are still executed. The callers that were
+   * blocked because the queue was full get a {@link RejectedExecutionException} when they get
+   * space in the queue, so their transactions are rolled back.
+   */
+  public void shutdown() {
+    threadPoolExecutor.shutdown();
+  }
+}
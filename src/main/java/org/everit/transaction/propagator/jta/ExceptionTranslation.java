@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+
+import org.everit.transaction.unchecked.UncheckedHeuristicMixedException;
+import org.everit.transaction.unchecked.UncheckedHeuristicRollbackException;
+import org.everit.transaction.unchecked.UncheckedInvalidTransactionException;
+import org.everit.transaction.unchecked.UncheckedNotSupportedException;
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.everit.transaction.unchecked.UncheckedSystemException;
+
+/**
+ * Table of {@link ExceptionTranslator}s that is used by {@link JTATransactionPropagator} to
+ * translate the exceptions of the transaction manager and of the callbacks to unchecked ones. Every
+ * exception type is also classified as retryable or not, so callers like
+ * {@link OperationInvoker} can decide whether a failed call may succeed in a new transaction.
+ *
+ * <p>
+ * The translator of an exception is the one that was registered for its class or for its nearest
+ * superclass. The result of the lookup is cached per exception class, so the hierarchy of a class
+ * is walked only once. The JTA exceptions are registered by default:
+ * {@link RollbackException} and {@link HeuristicRollbackException} are translated to retryable
+ * unchecked exceptions, the others to non-retryable ones. Unchecked exceptions without a registered
+ * translator are thrown as they are, checked ones are wrapped into a {@link RuntimeException}.
+ *
+ * <p>
+ * An exception is translated only once: the classification of every translated exception is
+ * remembered with weak keys, so the translated exception is passed through as it is when it arrives
+ * at the enclosing propagator calls, and the classification is kept only as long as the exception
+ * itself is referenced. The classification of a translated exception is the classification of the
+ * exception it was translated from, or of its own type if no translator was registered for the
+ * original one.
+ */
+public final class ExceptionTranslation {
+
+  /**
+   * The translator and the classification of an exception type.
+   */
+  private static final class Entry {
+
+    final boolean retryable;
+
+    final ExceptionTranslator<Throwable> translator;
+
+    Entry(final ExceptionTranslator<Throwable> translator, final boolean retryable) {
+      this.translator = translator;
+      this.retryable = retryable;
+    }
+  }
+
+  private static final Entry DEFAULT_ENTRY = new Entry(null, false);
+
+  private static ClassValue<Entry> createLookup(final Map<Class<?>, Entry> registeredEntries) {
+    return new ClassValue<Entry>() {
+      @Override
+      protected Entry computeValue(final Class<?> type) {
+        Class<?> currentType = type;
+        while (currentType != null) {
+          Entry entry = registeredEntries.get(currentType);
+          if (entry != null) {
+            return entry;
+          }
+          currentType = currentType.getSuperclass();
+        }
+        return DEFAULT_ENTRY;
+      }
+    };
+  }
+
+  private volatile ClassValue<Entry> lookup;
+
+  private final Map<Class<?>, Entry> registeredEntries = new LinkedHashMap<Class<?>, Entry>();
+
+  /**
+   * The exceptions that were returned by {@link #translate(Throwable)} with their classification.
+   */
+  private final Map<Throwable, Boolean> translatedExceptions =
+      Collections.synchronizedMap(new WeakHashMap<Throwable, Boolean>());
+
+  /**
+   * Constructor that registers the translators of the JTA exceptions.
+   */
+  public ExceptionTranslation() {
+    register(RollbackException.class, UncheckedRollbackException::new, true);
+    register(HeuristicMixedException.class, UncheckedHeuristicMixedException::new, false);
+    register(HeuristicRollbackException.class, UncheckedHeuristicRollbackException::new, true);
+    register(InvalidTransactionException.class, UncheckedInvalidTransactionException::new,
+        false);
+    register(NotSupportedException.class, UncheckedNotSupportedException::new, false);
+    register(SystemException.class, UncheckedSystemException::new, false);
+
+    register(UncheckedRollbackException.class, (e) -> e, true);
+    register(UncheckedHeuristicRollbackException.class, (e) -> e, true);
+  }
+
+  /**
+   * Tells whether a failed call may succeed if it is called again in a new transaction.
+   *
+   * @param throwable
+   *          The exception that was thrown by the failed call.
+   * @return <code>true</code> if the type of the exception or its nearest registered superclass
+   *         was registered as retryable. If the exception was returned by
+   *         {@link #translate(Throwable)}, the classification of the original exception is
+   *         returned.
+   */
+  public boolean isRetryable(final Throwable throwable) {
+    Boolean retryable = translatedExceptions.get(throwable);
+    if (retryable != null) {
+      return retryable;
+    }
+    return lookup.get(throwable.getClass()).retryable;
+  }
+
+  /**
+   * Registers the translator of an exception type. The translator is used for the subclasses of
+   * the type as well unless a translator is registered for a more specific type. Translators
+   * should be registered before the propagator is used.
+   *
+   * @param type
+   *          The type of the exceptions.
+   * @param translator
+   *          The translator of the exceptions.
+   * @param retryable
+   *          Whether a call that failed with an exception of the type may succeed if it is called
+   *          again in a new transaction.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <T extends Throwable> void register(final Class<T> type,
+      final ExceptionTranslator<? super T> translator, final boolean retryable) {
+    if ((type == null) || (translator == null)) {
+      throw new NullPointerException("Type and translator must not be null");
+    }
+    registeredEntries.put(type, new Entry((ExceptionTranslator<Throwable>) translator,
+        retryable));
+    // A ClassValue cannot be invalidated for all classes, so a new one is created with a snapshot
+    // of the registered entries.
+    lookup = createLookup(new LinkedHashMap<Class<?>, Entry>(registeredEntries));
+  }
+
+  /**
+   * Translates an exception with the translator that was registered for its type.
+   *
+   * @param throwable
+   *          The exception to translate.
+   * @return The translated exception, the same instance if it was returned by this method before
+   *         or if it is unchecked and no translator was registered for it, or a
+   *         {@link RuntimeException} that wraps it.
+   */
+  public RuntimeException translate(final Throwable throwable) {
+    if (translatedExceptions.containsKey(throwable)) {
+      // Only the results of the translation are remembered and they are all unchecked
+      return (RuntimeException) throwable;
+    }
+    Entry entry = lookup.get(throwable.getClass());
+    RuntimeException translated;
+    if (entry.translator != null) {
+      translated = entry.translator.translate(throwable);
+    } else if (throwable instanceof RuntimeException) {
+      translated = (RuntimeException) throwable;
+    } else {
+      translated = new RuntimeException(throwable);
+    }
+    boolean retryable;
+    if (entry != DEFAULT_ENTRY) {
+      retryable = entry.retryable;
+    } else {
+      retryable = lookup.get(translated.getClass()).retryable;
+    }
+    translatedExceptions.put(translated, retryable);
+    return translated;
+  }
+}
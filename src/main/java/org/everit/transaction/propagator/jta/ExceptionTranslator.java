@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * Translates an exception that was thrown during a call of {@link JTATransactionPropagator} to the
+ * unchecked exception that is thrown by the propagator.
+ *
+ * @param <T>
+ *          The type of the translated exceptions.
+ */
+@FunctionalInterface
+public interface ExceptionTranslator<T extends Throwable> {
+
+  /**
+   * Translates an exception.
+   *
+   * @param throwable
+   *          The exception that was thrown by the transaction manager or by the callback.
+   * @return The exception that is thrown instead. It might be the same instance if it is
+   *         unchecked.
+   */
+  RuntimeException translate(T throwable);
+}
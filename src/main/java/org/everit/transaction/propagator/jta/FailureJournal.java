@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import javax.transaction.Transaction;
+
+/**
+ * Journal of the transaction failures that would otherwise be available only in the exception
+ * chain. The journal is called by {@link JTATransactionPropagator} on the thread where the failure
+ * happened, so implementations should not block.
+ */
+public interface FailureJournal {
+
+  /**
+   * Writes a failure to the journal.
+   *
+   * @param mode
+   *          The propagation mode that started the transaction.
+   * @param outcome
+   *          The kind of the failure.
+   * @param transaction
+   *          The transaction that failed.
+   * @param throwable
+   *          The exception that was thrown by the transaction manager.
+   */
+  void write(PropagationMode mode, FailureOutcome outcome, Transaction transaction,
+      Throwable throwable);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads the records of a journal that was written by {@link MappedFailureJournal}.
+ */
+public final class FailureJournalReader {
+
+  /**
+   * Prints the records of the journal files that are passed as arguments.
+   *
+   * @param args
+   *          The paths of the journal files.
+   * @throws IOException
+   *           if a file cannot be read.
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: " + FailureJournalReader.class.getName() + " <journalFile>...");
+      return;
+    }
+    for (String path : args) {
+      for (FailureJournalRecord record : read(new File(path))) {
+        System.out.println(record);
+      }
+    }
+  }
+
+  /**
+   * Reads the records of a journal file.
+   *
+   * @param file
+   *          The journal file.
+   * @return The records in the order they were written.
+   * @throws IOException
+   *           if the file cannot be read or it is not a journal.
+   */
+  public static List<FailureJournalRecord> read(final File file) throws IOException {
+    ByteBuffer buffer;
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          randomAccessFile.length());
+    }
+    if ((buffer.limit() < MappedFailureJournal.HEADER_SIZE)
+        || (buffer.getInt(0) != MappedFailureJournal.MAGIC)
+        || (buffer.getInt(4) != MappedFailureJournal.VERSION)
+        || (buffer.getInt(8) != MappedFailureJournal.RECORD_SIZE)) {
+      throw new IOException("File " + file + " is not a failure journal");
+    }
+    int capacity = buffer.getInt(12);
+
+    PropagationMode[] modes = PropagationMode.values();
+    FailureOutcome[] outcomes = FailureOutcome.values();
+    List<FailureJournalRecord> records = new ArrayList<FailureJournalRecord>();
+    for (int i = 0; i < capacity; i++) {
+      int position = MappedFailureJournal.HEADER_SIZE + (i * MappedFailureJournal.RECORD_SIZE);
+      long sequence = buffer.getLong(position + MappedFailureJournal.OFFSET_SEQUENCE);
+      if (sequence != 0) {
+        records.add(new FailureJournalRecord(sequence,
+            buffer.getLong(position + MappedFailureJournal.OFFSET_TIMESTAMP),
+            modes[buffer.get(position + MappedFailureJournal.OFFSET_MODE)],
+            outcomes[buffer.get(position + MappedFailureJournal.OFFSET_OUTCOME)],
+            readField(buffer, position + MappedFailureJournal.OFFSET_TRANSACTION_ID),
+            new String(readField(buffer, position
+                + MappedFailureJournal.OFFSET_EXCEPTION_CLASS_NAME),
+                MappedFailureJournal.CHARSET)));
+      }
+    }
+    records.sort(Comparator.comparingLong(FailureJournalRecord::getSequence));
+    return records;
+  }
+
+  private static byte[] readField(final ByteBuffer buffer, final int position) {
+    byte[] value = new byte[buffer.getShort(position)];
+    ByteBuffer fieldBuffer = buffer.duplicate();
+    fieldBuffer.position(position + 2);
+    fieldBuffer.get(value);
+    return value;
+  }
+
+  private FailureJournalReader() {
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * A failure that was read from a journal by {@link FailureJournalReader}.
+ */
+public final class FailureJournalRecord {
+
+  private final String exceptionClassName;
+
+  private final PropagationMode mode;
+
+  private final FailureOutcome outcome;
+
+  private final long sequence;
+
+  private final long timestamp;
+
+  private final byte[] transactionId;
+
+  /**
+   * Constructor.
+   *
+   * @param sequence
+   *          The sequence number of the record within the journal.
+   * @param timestamp
+   *          The time of the failure in milliseconds since the epoch.
+   * @param mode
+   *          The propagation mode that started the transaction.
+   * @param outcome
+   *          The kind of the failure.
+   * @param transactionId
+   *          The identifier of the transaction.
+   * @param exceptionClassName
+   *          The class name of the exception that was thrown by the transaction manager.
+   */
+  public FailureJournalRecord(final long sequence, final long timestamp,
+      final PropagationMode mode, final FailureOutcome outcome, final byte[] transactionId,
+      final String exceptionClassName) {
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.mode = mode;
+    this.outcome = outcome;
+    this.transactionId = transactionId.clone();
+    this.exceptionClassName = exceptionClassName;
+  }
+
+  public String getExceptionClassName() {
+    return exceptionClassName;
+  }
+
+  public PropagationMode getMode() {
+    return mode;
+  }
+
+  public FailureOutcome getOutcome() {
+    return outcome;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public byte[] getTransactionId() {
+    return transactionId.clone();
+  }
+
+  @Override
+  public String toString() {
+    return "FailureJournalRecord [sequence=" + sequence + ", timestamp=" + timestamp + ", mode="
+        + mode.getModeName() + ", outcome=" + outcome + ", transactionId="
+        + new String(transactionId, MappedFailureJournal.CHARSET) + ", exceptionClassName="
+        + exceptionClassName + "]";
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * The kinds of transaction failures that are written to a {@link FailureJournal}.
+ */
+public enum FailureOutcome {
+
+  /**
+   * Commit threw {@link javax.transaction.HeuristicMixedException}.
+   */
+  HEURISTIC_MIXED,
+
+  /**
+   * Commit threw {@link javax.transaction.HeuristicRollbackException}.
+   */
+  HEURISTIC_ROLLBACK,
+
+  /**
+   * The rollback after a failed callback or a failed hand-over to the commit executor threw an
+   * exception that was added to the exception that caused the rollback as suppressed, or the
+   * rollback that ends a new transaction of {@link PropagationMode#READ_ONLY} failed.
+   */
+  ROLLBACK_FAILED,
+
+  /**
+   * A transaction with asynchronous commit could not be resumed on the commit executor, so it was
+   * rolled back without being associated with a thread.
+   */
+  RESUME_FAILED
+}
@@ -17,11 +17,14 @@ package org.everit.transaction.propagator.jta;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
-import javax.transaction.InvalidTransactionException;
 import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
@@ -30,12 +33,6 @@ import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
 import org.everit.transaction.propagator.TransactionPropagator;
-import org.everit.transaction.unchecked.UncheckedHeuristicMixedException;
-import org.everit.transaction.unchecked.UncheckedHeuristicRollbackException;
-import org.everit.transaction.unchecked.UncheckedInvalidTransactionException;
-import org.everit.transaction.unchecked.UncheckedNotSupportedException;
-import org.everit.transaction.unchecked.UncheckedRollbackException;
-import org.everit.transaction.unchecked.UncheckedSystemException;
 
 /**
  * JTA based implementation class of {@link TransactionPropagator}.
@@ -59,67 +56,250 @@ public class JTATransactionPropagator implements TransactionPropagator {
     STATUS_NAME_BY_CODE = statusNameByCode;
   }
 
+  private TransactionCircuitBreaker circuitBreaker;
+
+  private Executor commitExecutor;
+
+  private TransactionEventBus eventBus;
+
+  private ExceptionTranslation exceptionTranslation = new ExceptionTranslation();
+
+  private FailureJournal failureJournal;
+
+  private PhaseProfiler phaseProfiler;
+
+  private Predicate<Transaction> readOnlyWriteDetector;
+
+  private PropagationTraceRecorder traceRecorder;
+
   private final TransactionManager transactionManager;
 
   public JTATransactionPropagator(final TransactionManager transactionManager) {
     this.transactionManager = transactionManager;
   }
 
-  private <R> R doInNewTransaction(final Supplier<R> callback) {
-    try {
-      transactionManager.begin();
-    } catch (NotSupportedException e) {
-      throw new UncheckedNotSupportedException(e);
-    } catch (SystemException e) {
-      throw new UncheckedSystemException(e);
+  private long acquireCircuit() {
+    if (circuitBreaker == null) {
+      return 0;
     }
+    return circuitBreaker.acquire();
+  }
 
-    R result = null;
-
+  private void begin(final PropagationMode mode, final int timeoutSeconds,
+      final long probeRound) {
     try {
-      result = callback.get();
-    } catch (Throwable e) {
-      rollbackAndReThrow(e);
+      if (timeoutSeconds > 0) {
+        transactionManager.setTransactionTimeout(timeoutSeconds);
+      }
+      try {
+        transactionManager.begin();
+      } finally {
+        if (timeoutSeconds > 0) {
+          // The timeout is bound to the transaction at begin. JTA does not tell the timeout that
+          // was set for the thread before, so the thread is reset to the default timeout of the
+          // transaction manager.
+          transactionManager.setTransactionTimeout(0);
+        }
+      }
+    } catch (NotSupportedException | SystemException e) {
+      if ((circuitBreaker != null) && (e instanceof SystemException)) {
+        circuitBreaker.systemFailed(probeRound);
+      } else {
+        endProbe(probeRound);
+      }
+      throw exceptionTranslation.translate(e);
     }
+    publishEvent(TransactionEventType.BEGIN, mode);
+  }
 
+  private void callbackFailed(final PropagationCall call) {
+    if (call != null) {
+      call.callbackFailed();
+    }
+  }
+
+  private void commit(final PropagationMode mode, final Transaction transaction,
+      final long probeRound, final TransactionTimeout timeout, final long transactionStartNanos) {
+    long startNanos = (circuitBreaker != null) ? System.nanoTime() : 0;
     try {
       transactionManager.commit();
     } catch (Throwable e) {
-      Throwable uncheckedThrowable = e;
-      if (e instanceof RollbackException) {
-        uncheckedThrowable = new UncheckedRollbackException((RollbackException) e);
-      } else if (e instanceof HeuristicMixedException) {
-        uncheckedThrowable = new UncheckedHeuristicMixedException((HeuristicMixedException) e);
-      } else if (e instanceof HeuristicRollbackException) {
-        uncheckedThrowable =
-            new UncheckedHeuristicRollbackException((HeuristicRollbackException) e);
-      } else if (e instanceof SystemException) {
-        uncheckedThrowable = new UncheckedSystemException((SystemException) e);
+      recordCommit(startNanos, e, probeRound);
+      // The transaction manager rolls back the timed out transactions at commit
+      recordDuration(timeout, transactionStartNanos,
+          (e instanceof RollbackException) || (e instanceof HeuristicRollbackException));
+      publishEvent(TransactionEventType.COMMIT_FAILED, mode);
+      if (failureJournal != null) {
+        if (e instanceof HeuristicMixedException) {
+          writeFailureJournal(mode, FailureOutcome.HEURISTIC_MIXED, transaction, e);
+        } else if (e instanceof HeuristicRollbackException) {
+          writeFailureJournal(mode, FailureOutcome.HEURISTIC_ROLLBACK, transaction, e);
+        }
       }
       // No rollback is necessary here as if there was an exception during calling commit, the
       // transaction is either rolled back or there is no transaction to roll back.
-      throwOriginalIfUncheckedOrWrapped(uncheckedThrowable);
+      throwTranslated(e);
     }
-    return result;
+    recordCommit(startNanos, null, probeRound);
+    recordDuration(timeout, transactionStartNanos, false);
+    publishEvent(TransactionEventType.COMMIT, mode);
   }
 
-  private <R> R doInOngoingTransaction(final Supplier<R> callback) {
+  private <R> void commitOnExecutor(final PropagationMode mode, final Transaction transaction,
+      final R result, final CompletableFuture<R> future, final long probeRound) {
+    try {
+      try {
+        transactionManager.resume(transaction);
+      } catch (Throwable e) {
+        // The transaction is not associated with any thread, so it would hold its resources until
+        // the timeout of the transaction manager.
+        writeFailureJournal(mode, FailureOutcome.RESUME_FAILED, transaction, e);
+        rollbackSuspended(mode, transaction, e, probeRound);
+        throwTranslated(e);
+      }
+      publishEvent(TransactionEventType.RESUME, mode);
+      commit(mode, transaction, probeRound, null, 0);
+      future.complete(result);
+    } catch (Throwable e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  private <R> R doInNewTransaction(final PropagationMode mode, final Supplier<R> callback,
+      final TransactionTimeout timeout, final PropagationCall call, final long probeRound) {
+    if (timeout == null) {
+      begin(mode, 0, probeRound);
+      return doInStartedTransaction(mode, callback, call, probeRound, null, 0);
+    }
+    long startNanos = System.nanoTime();
+    begin(mode, timeout.getTimeoutSeconds(), probeRound);
+    return doInStartedTransaction(mode, callback, call, probeRound, timeout, startNanos);
+  }
+
+  private <R> CompletionStage<R> doInNewTransactionWithAsyncCommit(final PropagationMode mode,
+      final Supplier<R> callback, final PropagationCall call, final long probeRound) {
+    Executor executor = commitExecutor;
+    if (executor == null) {
+      endProbe(probeRound);
+      throw new IllegalStateException("No commit executor is set");
+    }
+    begin(mode, 0, probeRound);
+    Transaction transaction = null;
+    try {
+      transaction = getTransaction();
+    } catch (Throwable e) {
+      // The transaction is already associated with the thread
+      phaseEnded(call, TransactionPhase.BEGIN);
+      rollbackAndReThrow(mode, null, e, call, probeRound);
+    }
+    phaseEnded(call, TransactionPhase.BEGIN);
+
+    R result = null;
+    try {
+      result = callback.get();
+    } catch (Throwable e) {
+      phaseEnded(call, TransactionPhase.CALLBACK);
+      callbackFailed(call);
+      rollbackAndReThrow(mode, transaction, e, call, probeRound);
+    }
+    phaseEnded(call, TransactionPhase.CALLBACK);
+
+    try {
+      transactionManager.suspend();
+    } catch (Throwable e) {
+      phaseEnded(call, TransactionPhase.SUSPEND);
+      rollbackAndReThrow(mode, transaction, e, call, probeRound);
+    }
+    phaseEnded(call, TransactionPhase.SUSPEND);
+    publishEvent(TransactionEventType.SUSPEND, mode);
+
+    // The commit is not part of the observed call as it happens on the commit executor.
+    CompletableFuture<R> future = new CompletableFuture<R>();
+    R callbackResult = result;
+    Transaction suspendedTransaction = transaction;
+    try {
+      executor.execute(() -> commitOnExecutor(mode, suspendedTransaction, callbackResult, future,
+          probeRound));
+    } catch (Throwable e) {
+      rollbackSuspended(mode, transaction, e, probeRound);
+      phaseEnded(call, TransactionPhase.ROLLBACK);
+      throwTranslated(e);
+    }
+    return future;
+  }
+
+  private <R> R doInOngoingTransaction(final Supplier<R> callback,
+      final PropagationCall call) {
     Transaction transaction = getTransaction();
     try {
       return callback.get();
     } catch (Throwable e) {
+      callbackFailed(call);
       setRollbackOnly(transaction, e);
       return null;
+    } finally {
+      phaseEnded(call, TransactionPhase.CALLBACK);
+    }
+  }
+
+  private <R> R doInStartedTransaction(final PropagationMode mode, final Supplier<R> callback,
+      final PropagationCall call, final long probeRound, final TransactionTimeout timeout,
+      final long startNanos) {
+    Transaction transaction = null;
+    if ((failureJournal != null)
+        || ((mode == PropagationMode.READ_ONLY) && (readOnlyWriteDetector != null))) {
+      try {
+        transaction = getTransaction();
+      } catch (Throwable e) {
+        // The transaction is already associated with the thread
+        phaseEnded(call, TransactionPhase.BEGIN);
+        rollbackAndReThrow(mode, null, e, call, probeRound);
+      }
+    }
+    phaseEnded(call, TransactionPhase.BEGIN);
+
+    R result = null;
+
+    try {
+      result = callback.get();
+    } catch (Throwable e) {
+      phaseEnded(call, TransactionPhase.CALLBACK);
+      callbackFailed(call);
+      // Most callbacks fail for business reasons. A callback that fails because the transaction
+      // timed out has been running for the timeout already, so its real duration tells that too.
+      recordDuration(timeout, startNanos, false);
+      rollbackAndReThrow(mode, transaction, e, call, probeRound);
     }
+    phaseEnded(call, TransactionPhase.CALLBACK);
+
+    if (mode == PropagationMode.READ_ONLY) {
+      try {
+        endReadOnly(transaction, probeRound);
+      } finally {
+        recordDuration(timeout, startNanos, false);
+        phaseEnded(call, TransactionPhase.ROLLBACK);
+      }
+    } else {
+      try {
+        commit(mode, transaction, probeRound, timeout, startNanos);
+      } finally {
+        phaseEnded(call, TransactionPhase.COMMIT);
+      }
+    }
+    return result;
   }
 
-  private <R> R doInSuspended(final Supplier<R> callback) {
+  private <R> R doInSuspended(final PropagationMode mode, final Supplier<R> callback,
+      final PropagationCall call) {
     Transaction transaction = getTransaction();
     try {
       transactionManager.suspend();
     } catch (SystemException e) {
-      throw new UncheckedSystemException(e);
+      throw exceptionTranslation.translate(e);
+    } finally {
+      phaseEnded(call, TransactionPhase.SUSPEND);
     }
+    publishEvent(TransactionEventType.SUSPEND, mode);
 
     Throwable thrownDuringActionCall = null;
     R result = null;
@@ -128,23 +308,73 @@ public class JTATransactionPropagator implements TransactionPropagator {
     } catch (Throwable e) {
       thrownDuringActionCall = e;
     }
+    phaseEnded(call, TransactionPhase.CALLBACK);
 
-    resumeAndThrowIfOccured(transaction, thrownDuringActionCall);
+    resumeAndThrowIfOccured(mode, transaction, thrownDuringActionCall, call);
     return result;
   }
 
-  private void forceTransactionStatus(final int allowedStatus) {
-    int status = getStatus();
+  private void endProbe(final long probeRound) {
+    if (circuitBreaker != null) {
+      circuitBreaker.probeEnded(probeRound);
+    }
+  }
+
+  private void endReadOnly(final Transaction transaction, final long probeRound) {
+    boolean written = (readOnlyWriteDetector != null) && readOnlyWriteDetector.test(transaction);
+    try {
+      transactionManager.rollback();
+    } catch (Throwable e) {
+      writeFailureJournal(PropagationMode.READ_ONLY, FailureOutcome.ROLLBACK_FAILED, transaction,
+          e);
+      throwTranslated(e);
+    } finally {
+      // The read-only transactions do not commit, so they tell nothing about the commits.
+      endProbe(probeRound);
+    }
+    publishEvent(TransactionEventType.ROLLBACK, PropagationMode.READ_ONLY);
+    if (written) {
+      throw new IllegalStateException("Resource was written in read-only transaction: "
+          + transaction);
+    }
+  }
+
+  private void failCall(final PropagationCall call) {
+    if (call != null) {
+      call.failed();
+    }
+  }
+
+  private void finishCall(final PropagationCall call) {
+    if (call != null) {
+      call.finish();
+    }
+  }
+
+  private void forceTransactionStatus(final int allowedStatus, final PropagationCall call) {
+    int status = getEntryStatus(call);
     if (status != allowedStatus) {
       throwNotAllowedStatus(status, allowedStatus);
     }
   }
 
-  private int getStatus() {
+  private int getEntryStatus(final PropagationCall call) {
+    int status = getStatus();
+    if (call != null) {
+      call.entryStatus = status;
+    }
+    return status;
+  }
+
+  ExceptionTranslation getExceptionTranslation() {
+    return exceptionTranslation;
+  }
+
+  int getStatus() {
     try {
       return transactionManager.getStatus();
     } catch (SystemException e) {
-      throw new UncheckedSystemException(e);
+      throw exceptionTranslation.translate(e);
     }
   }
 
@@ -152,87 +382,447 @@ public class JTATransactionPropagator implements TransactionPropagator {
     try {
       return transactionManager.getTransaction();
     } catch (SystemException e) {
-      throw new UncheckedSystemException(e);
+      throw exceptionTranslation.translate(e);
+    }
+  }
+
+  private <R> R invokeCallback(final Supplier<R> callback, final PropagationCall call) {
+    try {
+      return callback.get();
+    } catch (Throwable e) {
+      callbackFailed(call);
+      throw e;
+    } finally {
+      phaseEnded(call, TransactionPhase.CALLBACK);
     }
   }
 
   @Override
   public <R> R mandatory(final Supplier<R> callback) {
-    forceTransactionStatus(Status.STATUS_ACTIVE);
-    return doInOngoingTransaction(callback);
+    PropagationCall call = startCall(PropagationMode.MANDATORY);
+    try {
+      forceTransactionStatus(Status.STATUS_ACTIVE, call);
+      return doInOngoingTransaction(callback, call);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
+    }
   }
 
   @Override
   public <R> R never(final Supplier<R> callback) {
-    forceTransactionStatus(Status.STATUS_NO_TRANSACTION);
-    return callback.get();
+    PropagationCall call = startCall(PropagationMode.NEVER);
+    try {
+      forceTransactionStatus(Status.STATUS_NO_TRANSACTION, call);
+      return invokeCallback(callback, call);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
+    }
   }
 
   @Override
   public <R> R notSupported(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_NO_TRANSACTION == status) {
-      return callback.get();
+    PropagationCall call = startCall(PropagationMode.NOT_SUPPORTED);
+    try {
+      int status = getEntryStatus(call);
+      if (Status.STATUS_NO_TRANSACTION == status) {
+        return invokeCallback(callback, call);
+      }
+
+      if (status != Status.STATUS_ACTIVE) {
+        throwNotAllowedStatus(status, Status.STATUS_NO_TRANSACTION, Status.STATUS_ACTIVE);
+      }
+
+      // The wrapper tells the failures of the callback from the failures of the resume.
+      return doInSuspended(PropagationMode.NOT_SUPPORTED,
+          (call == null) ? callback : () -> invokeCallback(callback, call), call);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
     }
+  }
 
-    if (status != Status.STATUS_ACTIVE) {
-      throwNotAllowedStatus(status, Status.STATUS_NO_TRANSACTION, Status.STATUS_ACTIVE);
+  private void phaseEnded(final PropagationCall call, final TransactionPhase phase) {
+    if (call != null) {
+      call.phaseEnded(phase);
     }
+  }
 
-    return doInSuspended(callback);
+  private void publishEvent(final TransactionEventType type, final PropagationMode mode) {
+    if (eventBus != null) {
+      eventBus.publish(type, mode);
+    }
+  }
+
+  /**
+   * Same as {@link #readOnly(Supplier)} but with an action that has no result.
+   *
+   * @param action
+   *          The action that is called within the transaction.
+   */
+  public void readOnly(final Runnable action) {
+    readOnly(() -> {
+      action.run();
+      return null;
+    });
+  }
+
+  /**
+   * Calls the callback in a transaction that is never committed. If there is an ongoing
+   * transaction, the callback is called within that as with {@link #required(Supplier)}.
+   * Otherwise a new transaction is started and it is rolled back after the callback returns, so
+   * neither the prepare phase nor the transaction log write of the commit happens. The result of
+   * the callback is returned even if the transaction was marked for rollback during the callback.
+   *
+   * <p>
+   * If a write detector is set via {@link #setReadOnlyWriteDetector(Predicate)}, it is checked
+   * before the new transaction is rolled back.
+   *
+   * @param callback
+   *          The callback that is called within the transaction.
+   * @return The result of the callback.
+   * @throws IllegalStateException
+   *           if the write detector reports that a resource was written in the new transaction.
+   */
+  public <R> R readOnly(final Supplier<R> callback) {
+    return readOnly(callback, null);
+  }
+
+  /**
+   * Same as {@link #readOnly(Supplier)} but the transaction is started with the specified timeout
+   * if a new one has to be started.
+   *
+   * @param callback
+   *          The callback that is called within the transaction.
+   * @param timeout
+   *          The timeout of the new transaction or <code>null</code> to use the default timeout of
+   *          the transaction manager.
+   * @return The result of the callback.
+   */
+  <R> R readOnly(final Supplier<R> callback, final TransactionTimeout timeout) {
+    PropagationCall call = startCall(PropagationMode.READ_ONLY);
+    try {
+      int status = getEntryStatus(call);
+      if (Status.STATUS_ACTIVE == status) {
+        return doInOngoingTransaction(callback, call);
+      }
+      if (Status.STATUS_NO_TRANSACTION != status) {
+        throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+      }
+      long probeRound = acquireCircuit();
+      return doInNewTransaction(PropagationMode.READ_ONLY, callback, timeout, call, probeRound);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
+    }
   }
 
   @Override
   public <R> R required(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_ACTIVE == status) {
-      return doInOngoingTransaction(callback);
+    return required(callback, null);
+  }
+
+  /**
+   * Same as {@link #required(Supplier)} but the transaction is started with the specified timeout
+   * if a new one has to be started.
+   *
+   * @param callback
+   *          The callback that is called within the transaction.
+   * @param timeout
+   *          The timeout of the new transaction or <code>null</code> to use the default timeout of
+   *          the transaction manager.
+   * @return The result of the callback.
+   */
+  <R> R required(final Supplier<R> callback, final TransactionTimeout timeout) {
+    PropagationCall call = startCall(PropagationMode.REQUIRED);
+    try {
+      int status = getEntryStatus(call);
+      if (Status.STATUS_ACTIVE == status) {
+        return doInOngoingTransaction(callback, call);
+      }
+      if (Status.STATUS_NO_TRANSACTION != status) {
+        throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+      }
+      long probeRound = acquireCircuit();
+      return doInNewTransaction(PropagationMode.REQUIRED, callback, timeout, call, probeRound);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
     }
-    if (Status.STATUS_NO_TRANSACTION != status) {
-      throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+  }
+
+  /**
+   * Same as {@link #required(Supplier)} but if a new transaction is started, the method returns
+   * as soon as the callback is finished and the transaction is committed by the commit executor
+   * of the propagator. If there is an ongoing transaction, the callback is called within that and
+   * the returned stage is already completed.
+   *
+   * @param callback
+   *          The callback that is called within the transaction.
+   * @return The stage that is completed with the result of the callback when the transaction is
+   *         committed or exceptionally if the commit fails.
+   * @throws IllegalStateException
+   *           if a new transaction has to be started and no commit executor is set.
+   */
+  public <R> CompletionStage<R> requiredWithAsyncCommit(final Supplier<R> callback) {
+    PropagationCall call = startCall(PropagationMode.REQUIRED);
+    try {
+      int status = getEntryStatus(call);
+      if (Status.STATUS_ACTIVE == status) {
+        return CompletableFuture.completedFuture(doInOngoingTransaction(callback, call));
+      }
+      if (Status.STATUS_NO_TRANSACTION != status) {
+        throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+      }
+      long probeRound = acquireCircuit();
+      return doInNewTransactionWithAsyncCommit(PropagationMode.REQUIRED, callback, call,
+          probeRound);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
     }
-    return doInNewTransaction(callback);
   }
 
   @Override
   public <R> R requiresNew(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_NO_TRANSACTION == status) {
-      return doInNewTransaction(callback);
+    return requiresNew(callback, null);
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)} but the new transaction is started with the specified
+   * timeout.
+   *
+   * @param callback
+   *          The callback that is called within the new transaction.
+   * @param timeout
+   *          The timeout of the new transaction or <code>null</code> to use the default timeout of
+   *          the transaction manager.
+   * @return The result of the callback.
+   */
+  <R> R requiresNew(final Supplier<R> callback, final TransactionTimeout timeout) {
+    PropagationCall call = startCall(PropagationMode.REQUIRES_NEW);
+    try {
+      int status = getEntryStatus(call);
+      if (Status.STATUS_NO_TRANSACTION == status) {
+        long probeRound = acquireCircuit();
+        return doInNewTransaction(PropagationMode.REQUIRES_NEW, callback, timeout, call,
+            probeRound);
+      }
+      return doInSuspended(PropagationMode.REQUIRES_NEW,
+          () -> doInNewTransaction(PropagationMode.REQUIRES_NEW, callback, timeout, call, 0),
+          call);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
     }
-    return doInSuspended(() -> doInNewTransaction(callback));
   }
 
-  private void resumeAndThrowIfOccured(final Transaction transaction,
-      final Throwable thrownThrowable) {
+  /**
+   * Same as {@link #requiresNew(Supplier)} but the method returns as soon as the callback is
+   * finished and the new transaction is committed by the commit executor of the propagator. The
+   * suspended transaction is resumed before the method returns.
+   *
+   * @param callback
+   *          The callback that is called within the new transaction.
+   * @return The stage that is completed with the result of the callback when the transaction is
+   *         committed or exceptionally if the commit fails.
+   * @throws IllegalStateException
+   *           if no commit executor is set.
+   */
+  public <R> CompletionStage<R> requiresNewWithAsyncCommit(final Supplier<R> callback) {
+    PropagationCall call = startCall(PropagationMode.REQUIRES_NEW);
+    try {
+      int status = getEntryStatus(call);
+      if (Status.STATUS_NO_TRANSACTION == status) {
+        long probeRound = acquireCircuit();
+        return doInNewTransactionWithAsyncCommit(PropagationMode.REQUIRES_NEW, callback, call,
+            probeRound);
+      }
+      return doInSuspended(PropagationMode.REQUIRES_NEW,
+          () -> doInNewTransactionWithAsyncCommit(PropagationMode.REQUIRES_NEW, callback, call,
+              0),
+          call);
+    } catch (Throwable e) {
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
+    }
+  }
+
+  private void recordCommit(final long startNanos, final Throwable thrownThrowable,
+      final long probeRound) {
+    if (circuitBreaker == null) {
+      return;
+    }
+    if (thrownThrowable instanceof SystemException) {
+      circuitBreaker.systemFailed(probeRound);
+    } else {
+      circuitBreaker.commitCompleted(System.nanoTime() - startNanos, probeRound);
+    }
+  }
+
+  private void recordDuration(final TransactionTimeout timeout, final long startNanos,
+      final boolean rolledBackAtCommit) {
+    if (timeout == null) {
+      return;
+    }
+    long durationNanos = System.nanoTime() - startNanos;
+    if (rolledBackAtCommit) {
+      timeout.transactionRolledBack(durationNanos);
+    } else {
+      timeout.transactionCompleted(durationNanos);
+    }
+  }
+
+  private void resumeAndThrowIfOccured(final PropagationMode mode, final Transaction transaction,
+      final Throwable thrownThrowable, final PropagationCall call) {
     try {
       transactionManager.resume(transaction);
     } catch (Throwable e) {
+      phaseEnded(call, TransactionPhase.RESUME);
       if (thrownThrowable != null) {
         suppressThrowable(thrownThrowable, e);
       } else {
-        Throwable uncheckedThrowable = e;
-        if (e instanceof InvalidTransactionException) {
-          uncheckedThrowable =
-              new UncheckedInvalidTransactionException((InvalidTransactionException) e);
-        } else if (e instanceof SystemException) {
-          uncheckedThrowable = new UncheckedSystemException((SystemException) e);
-        }
-        throwOriginalIfUncheckedOrWrapped(uncheckedThrowable);
+        throwTranslated(e);
       }
     }
+    phaseEnded(call, TransactionPhase.RESUME);
+    publishEvent(TransactionEventType.RESUME, mode);
     if (thrownThrowable != null) {
-      throwOriginalIfUncheckedOrWrapped(thrownThrowable);
+      throwTranslated(thrownThrowable);
     }
   }
 
-  private void rollbackAndReThrow(final Throwable thrownThrowable) {
+  private void rollbackAndReThrow(final PropagationMode mode, final Transaction transaction,
+      final Throwable thrownThrowable, final PropagationCall call, final long probeRound) {
+    endProbe(probeRound);
     try {
       transactionManager.rollback();
+      publishEvent(TransactionEventType.ROLLBACK, mode);
+    } catch (Throwable e) {
+      writeFailureJournal(mode, FailureOutcome.ROLLBACK_FAILED, transaction, e);
+      suppressThrowable(thrownThrowable, e);
+    }
+    phaseEnded(call, TransactionPhase.ROLLBACK);
+    throwTranslated(thrownThrowable);
+  }
+
+  private void rollbackSuspended(final PropagationMode mode, final Transaction transaction,
+      final Throwable thrownThrowable, final long probeRound) {
+    endProbe(probeRound);
+    try {
+      transaction.rollback();
+      publishEvent(TransactionEventType.ROLLBACK, mode);
     } catch (Throwable e) {
+      writeFailureJournal(mode, FailureOutcome.ROLLBACK_FAILED, transaction, e);
       suppressThrowable(thrownThrowable, e);
     }
-    throwOriginalIfUncheckedOrWrapped(thrownThrowable);
+  }
+
+  /**
+   * Sets the circuit breaker that rejects new top level transactions while the commits of the
+   * transaction manager are slow or fail with system exceptions. The circuit breaker should be set
+   * before the propagator is used.
+   *
+   * @param circuitBreaker
+   *          The circuit breaker or <code>null</code> if new transactions should never be
+   *          rejected.
+   */
+  public void setCircuitBreaker(final TransactionCircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Sets the executor that commits the transactions of {@link #requiredWithAsyncCommit(Supplier)}
+   * and {@link #requiresNewWithAsyncCommit(Supplier)}. The transactions are resumed on the threads
+   * of the executor, so they must not be associated with any transaction. The executor should be
+   * set before the propagator is used. {@link AsyncCommitExecutor} provides dedicated threads and
+   * backpressure.
+   *
+   * @param commitExecutor
+   *          The executor or <code>null</code> if asynchronous commit is not supported.
+   */
+  public void setCommitExecutor(final Executor commitExecutor) {
+    this.commitExecutor = commitExecutor;
+  }
+
+  /**
+   * Sets the bus where the begin, commit, rollback, suspend and resume events of this propagator
+   * are published. The bus should be set before the propagator is used.
+   *
+   * @param eventBus
+   *          The bus or <code>null</code> if no events should be published.
+   */
+  public void setEventBus(final TransactionEventBus eventBus) {
+    this.eventBus = eventBus;
+  }
+
+  /**
+   * Sets the table that translates the exceptions of the transaction manager and of the callbacks
+   * to the unchecked exceptions that are thrown by the propagator. The table should be set before
+   * the propagator is used.
+   *
+   * @param exceptionTranslation
+   *          The table of translators.
+   */
+  public void setExceptionTranslation(final ExceptionTranslation exceptionTranslation) {
+    if (exceptionTranslation == null) {
+      throw new NullPointerException("Exception translation must not be null");
+    }
+    this.exceptionTranslation = exceptionTranslation;
+  }
+
+  /**
+   * Sets the journal where the heuristic outcomes and the failed rollbacks of the transactions
+   * started by this propagator are written. The journal should be set before the propagator is
+   * used.
+   *
+   * @param failureJournal
+   *          The journal or <code>null</code> if failures should not be journaled.
+   */
+  public void setFailureJournal(final FailureJournal failureJournal) {
+    this.failureJournal = failureJournal;
+  }
+
+  /**
+   * Sets the profiler that samples the time spent in the phases of the calls of this propagator.
+   * The profiler should be set before the propagator is used.
+   *
+   * @param phaseProfiler
+   *          The profiler or <code>null</code> if the calls should not be profiled.
+   */
+  public void setPhaseProfiler(final PhaseProfiler phaseProfiler) {
+    this.phaseProfiler = phaseProfiler;
+  }
+
+  /**
+   * Sets the detector that tells whether any resource was written in a new transaction of
+   * {@link #readOnly(Supplier)}. JTA does not expose the enlisted resources of a transaction, so
+   * the detector has to rely on the resource adapters, e.g. on resources that were registered via
+   * {@link javax.transaction.TransactionSynchronizationRegistry}. The detector should be set
+   * before the propagator is used.
+   *
+   * @param readOnlyWriteDetector
+   *          The detector or <code>null</code> if writes should not be checked.
+   */
+  public void setReadOnlyWriteDetector(final Predicate<Transaction> readOnlyWriteDetector) {
+    this.readOnlyWriteDetector = readOnlyWriteDetector;
   }
 
   private void setRollbackOnly(final Transaction transaction,
@@ -242,24 +832,48 @@ public class JTATransactionPropagator implements TransactionPropagator {
     } catch (Throwable e) {
       suppressThrowable(thrownThrowable, e);
     }
-    throwOriginalIfUncheckedOrWrapped(thrownThrowable);
+    throwTranslated(thrownThrowable);
   }
 
-  @Override
-  public <R> R supports(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_NO_TRANSACTION == status) {
-      return callback.get();
+  /**
+   * Sets the recorder that writes a trace of the calls of this propagator. The recorder should be
+   * set before the propagator is used.
+   *
+   * @param traceRecorder
+   *          The recorder or <code>null</code> if the calls should not be traced.
+   */
+  public void setTraceRecorder(final PropagationTraceRecorder traceRecorder) {
+    this.traceRecorder = traceRecorder;
+  }
+
+  private PropagationCall startCall(final PropagationMode mode) {
+    PhaseProfiler.CallSiteProfile profile = null;
+    if (phaseProfiler != null) {
+      profile = phaseProfiler.sampleCallSite();
     }
-    if (Status.STATUS_ACTIVE != status) {
-      throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+    if ((profile == null) && (traceRecorder == null)) {
+      return null;
     }
-    Transaction transaction = getTransaction();
+    return new PropagationCall(mode, profile, traceRecorder);
+  }
+
+  @Override
+  public <R> R supports(final Supplier<R> callback) {
+    PropagationCall call = startCall(PropagationMode.SUPPORTS);
     try {
-      return callback.get();
+      int status = getEntryStatus(call);
+      if (Status.STATUS_NO_TRANSACTION == status) {
+        return invokeCallback(callback, call);
+      }
+      if (Status.STATUS_ACTIVE != status) {
+        throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+      }
+      return doInOngoingTransaction(callback, call);
     } catch (Throwable e) {
-      setRollbackOnly(transaction, e);
-      return null;
+      failCall(call);
+      throw e;
+    } finally {
+      finishCall(call);
     }
   }
 
@@ -290,12 +904,22 @@ public class JTATransactionPropagator implements TransactionPropagator {
     throw new IllegalStateException(sb.toString());
   }
 
-  private void throwOriginalIfUncheckedOrWrapped(final Throwable e) {
-    if (e instanceof RuntimeException) {
-      throw (RuntimeException) e;
-    } else if (e instanceof Error) {
+  private void throwTranslated(final Throwable e) {
+    if (e instanceof Error) {
       throw (Error) e;
     }
-    throw new RuntimeException(e);
+    throw exceptionTranslation.translate(e);
+  }
+
+  private void writeFailureJournal(final PropagationMode mode, final FailureOutcome outcome,
+      final Transaction transaction, final Throwable throwable) {
+    if (failureJournal == null) {
+      return;
+    }
+    try {
+      failureJournal.write(mode, outcome, transaction, throwable);
+    } catch (RuntimeException e) {
+      throwable.addSuppressed(e);
+    }
   }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe streaming quantile sketch of non-negative values with logarithmic buckets. Every
+ * power of two range is split into sixteen linear buckets, so the quantiles are overestimated by at
+ * most 1/16 of the value. The sketch has a fixed size independently from the number of recorded
+ * values.
+ *
+ * <p>
+ * If a decay threshold is specified, all counts are halved every time the number of recorded
+ * values reaches it, so the sketch follows the changes of the distribution.
+ */
+public final class LatencySketch {
+
+  private static final int SUB_BUCKET_BITS = 4;
+
+  /**
+   * Enough buckets to store {@link Long#MAX_VALUE}.
+   */
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+  private static int bucketIndex(final long value) {
+    if (value < (1 << SUB_BUCKET_BITS)) {
+      return (int) value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & ((1 << SUB_BUCKET_BITS) - 1);
+    return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+  }
+
+  private static long bucketUpperBound(final int index) {
+    if (index < (1 << SUB_BUCKET_BITS)) {
+      return index;
+    }
+    int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    long mantissa = (index & ((1 << SUB_BUCKET_BITS) - 1)) + (1 << SUB_BUCKET_BITS);
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  private final long decayThreshold;
+
+  private final AtomicLong recordedSinceDecay = new AtomicLong();
+
+  /**
+   * Creates a sketch that never forgets the recorded values.
+   */
+  public LatencySketch() {
+    this(0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param decayThreshold
+   *          The number of recorded values after which all counts are halved or zero if the counts
+   *          should never be halved.
+   */
+  public LatencySketch(final long decayThreshold) {
+    if (decayThreshold < 0) {
+      throw new IllegalArgumentException("Decay threshold must not be negative: " + decayThreshold);
+    }
+    this.decayThreshold = decayThreshold;
+  }
+
+  private void decay() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long count;
+      do {
+        count = counts.get(i);
+      } while ((count > 1) && !counts.compareAndSet(i, count, count >>> 1));
+    }
+  }
+
+  /**
+   * Returns the number of values that the quantiles are currently calculated from.
+   *
+   * @return The count of values.
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the approximate quantile of the recorded values.
+   *
+   * @param quantile
+   *          The quantile between 0 and 1, e.g. 0.99.
+   * @return The approximate value of the quantile that is never lower than the exact one or
+   *         <code>-1</code> if no value has been recorded yet.
+   */
+  public long getQuantile(final double quantile) {
+    if ((quantile < 0) || (quantile > 1)) {
+      throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+    }
+    long[] snapshot = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return -1;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return bucketUpperBound(i);
+      }
+    }
+    return bucketUpperBound(BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Adds the counts of another sketch to this one.
+   *
+   * @param other
+   *          The sketch whose values are added. It is not modified.
+   */
+  public void merge(final LatencySketch other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+  }
+
+  /**
+   * Records a value.
+   *
+   * @param value
+   *          The value. Negative values are recorded as zero.
+   */
+  public void record(final long value) {
+    counts.incrementAndGet(bucketIndex(Math.max(0, value)));
+    if ((decayThreshold > 0) && (recordedSinceDecay.incrementAndGet() == decayThreshold)) {
+      decay();
+      recordedSinceDecay.addAndGet(-decayThreshold);
+    }
+  }
+}
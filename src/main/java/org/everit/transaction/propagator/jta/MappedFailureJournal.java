@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Transaction;
+
+/**
+ * {@link FailureJournal} that writes fixed-size binary records into a memory-mapped ring file. The
+ * records are written into the page cache of the operating system without any system call, so
+ * they survive the crash of the process without slowing down the thread that had the failure.
+ * When the file is full, the oldest records are overwritten.
+ *
+ * <p>
+ * JTA does not expose the Xid of a {@link Transaction}, so the identifier of the transaction is
+ * the string representation of the transaction that contains the Xid with the common transaction
+ * managers. The identifier and the exception class name are truncated to the size of their field.
+ * The records can be read by {@link FailureJournalReader}.
+ */
+public class MappedFailureJournal implements FailureJournal, Closeable {
+
+  static final Charset CHARSET = Charset.forName("UTF-8");
+
+  static final int EXCEPTION_CLASS_NAME_MAX_LENGTH = 132;
+
+  static final int HEADER_SIZE = 16;
+
+  static final int MAGIC = 0x54504A46;
+
+  static final int OFFSET_EXCEPTION_CLASS_NAME = 120;
+
+  static final int OFFSET_MODE = 16;
+
+  static final int OFFSET_OUTCOME = 17;
+
+  static final int OFFSET_SEQUENCE = 0;
+
+  static final int OFFSET_TIMESTAMP = 8;
+
+  static final int OFFSET_TRANSACTION_ID = 20;
+
+  static final int RECORD_SIZE = 256;
+
+  static final int TRANSACTION_ID_MAX_LENGTH = 96;
+
+  static final int VERSION = 1;
+
+  static int recordPosition(final long sequence, final int capacity) {
+    return HEADER_SIZE + (int) ((sequence - 1) % capacity) * RECORD_SIZE;
+  }
+
+  private static void writeField(final ByteBuffer buffer, final int position, final byte[] value,
+      final int maxLength) {
+    int length = Math.min(value.length, maxLength);
+    buffer.putShort(position, (short) length);
+    buffer.position(position + 2);
+    buffer.put(value, 0, length);
+  }
+
+  private final MappedByteBuffer buffer;
+
+  private final int capacity;
+
+  private final AtomicLong lastSequence;
+
+  /**
+   * Opens a journal file or creates it if it does not exist. The records of an existing file are
+   * kept and the new records are appended after them.
+   *
+   * @param file
+   *          The journal file.
+   * @param capacity
+   *          The number of records that fit into the file. Must be the same as the capacity of the
+   *          existing file.
+   * @throws IOException
+   *           if the file cannot be opened or it is not a journal with the same capacity.
+   */
+  public MappedFailureJournal(final File file, final int capacity) throws IOException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    long fileSize = HEADER_SIZE + ((long) capacity * RECORD_SIZE);
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Capacity is too big: " + capacity);
+    }
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      long existingSize = randomAccessFile.length();
+      if ((existingSize != 0) && (existingSize != fileSize)) {
+        throw new IOException("Journal file " + file + " has a different capacity");
+      }
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    }
+
+    if (buffer.getInt(0) == 0) {
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, RECORD_SIZE);
+      buffer.putInt(12, capacity);
+      buffer.putInt(0, MAGIC);
+    } else if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+      throw new IOException("File " + file + " is not a failure journal");
+    }
+
+    long maxSequence = 0;
+    for (int i = 0; i < capacity; i++) {
+      maxSequence = Math.max(maxSequence,
+          buffer.getLong(HEADER_SIZE + (i * RECORD_SIZE) + OFFSET_SEQUENCE));
+    }
+    lastSequence = new AtomicLong(maxSequence);
+  }
+
+  /**
+   * Flushes the records to the storage device. The file must not be written after it is closed.
+   */
+  @Override
+  public void close() {
+    buffer.force();
+  }
+
+  @Override
+  public void write(final PropagationMode mode, final FailureOutcome outcome,
+      final Transaction transaction, final Throwable throwable) {
+    long sequence = lastSequence.incrementAndGet();
+    int position = recordPosition(sequence, capacity);
+    ByteBuffer recordBuffer = buffer.duplicate();
+
+    // The sequence is written last so readers skip records that are only partially written
+    recordBuffer.putLong(position + OFFSET_SEQUENCE, 0);
+    recordBuffer.putLong(position + OFFSET_TIMESTAMP, System.currentTimeMillis());
+    recordBuffer.put(position + OFFSET_MODE, (byte) mode.ordinal());
+    recordBuffer.put(position + OFFSET_OUTCOME, (byte) outcome.ordinal());
+    writeField(recordBuffer, position + OFFSET_TRANSACTION_ID,
+        String.valueOf(transaction).getBytes(CHARSET), TRANSACTION_ID_MAX_LENGTH);
+    writeField(recordBuffer, position + OFFSET_EXCEPTION_CLASS_NAME,
+        throwable.getClass().getName().getBytes(CHARSET), EXCEPTION_CLASS_NAME_MAX_LENGTH);
+    recordBuffer.putLong(position + OFFSET_SEQUENCE, sequence);
+  }
+}
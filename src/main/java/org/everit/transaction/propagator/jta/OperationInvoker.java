@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.function.Supplier;
+
+import javax.transaction.Status;
+
+/**
+ * Calls callbacks with the {@link OperationPolicy} that is currently bound to a named operation of
+ * an {@link OperationPolicyRegistry}. The policy is resolved when it is bound, so calling an
+ * invoker does not need any lookup or evaluation of the configuration.
+ */
+public final class OperationInvoker {
+
+  /**
+   * The policy of the operation together with the resolved mode and timeout of the new
+   * transactions.
+   */
+  private static final class BoundPolicy {
+
+    final PropagationMode mode;
+
+    final OperationPolicy policy;
+
+    final TransactionTimeout timeout;
+
+    BoundPolicy(final OperationPolicy policy, final TransactionTimeout timeout) {
+      this.policy = policy;
+      this.timeout = timeout;
+      if (policy.isReadOnly() && (policy.getMode() == PropagationMode.REQUIRED)) {
+        mode = PropagationMode.READ_ONLY;
+      } else {
+        mode = policy.getMode();
+      }
+    }
+  }
+
+  private volatile BoundPolicy boundPolicy;
+
+  private final String operationName;
+
+  private final JTATransactionPropagator propagator;
+
+  OperationInvoker(final String operationName, final JTATransactionPropagator propagator,
+      final OperationPolicy policy, final TransactionTimeout timeout) {
+    this.operationName = operationName;
+    this.propagator = propagator;
+    boundPolicy = new BoundPolicy(policy, timeout);
+  }
+
+  void bind(final OperationPolicy policy, final TransactionTimeout timeout) {
+    boundPolicy = new BoundPolicy(policy, timeout);
+  }
+
+  public String getOperationName() {
+    return operationName;
+  }
+
+  public OperationPolicy getPolicy() {
+    return boundPolicy.policy;
+  }
+
+  /**
+   * Calls the callback with the currently bound policy of the operation.
+   *
+   * @param action
+   *          The action that is called.
+   */
+  public void invoke(final Runnable action) {
+    invoke(() -> {
+      action.run();
+      return null;
+    });
+  }
+
+  /**
+   * Calls the callback with the currently bound policy of the operation. If the policy allows
+   * retries and the call that started a new transaction fails with an exception that is retryable
+   * according to the {@link ExceptionTranslation} of the propagator, e.g. because the transaction
+   * is rolled back during commit, the callback is called again in a new transaction.
+   *
+   * @param callback
+   *          The callback that is called.
+   * @return The result of the callback.
+   */
+  public <R> R invoke(final Supplier<R> callback) {
+    BoundPolicy currentPolicy = boundPolicy;
+    PropagationMode mode = currentPolicy.mode;
+    TransactionTimeout timeout = currentPolicy.timeout;
+    int retries = currentPolicy.policy.getRetries();
+    if (retries == 0 || !startsNewTransaction(mode)) {
+      return mode.propagate(propagator, callback, timeout);
+    }
+
+    int attempt = 0;
+    while (true) {
+      try {
+        return mode.propagate(propagator, callback, timeout);
+      } catch (RuntimeException e) {
+        if ((attempt >= retries) || !propagator.getExceptionTranslation().isRetryable(e)) {
+          throw e;
+        }
+        attempt++;
+      }
+    }
+  }
+
+  private boolean startsNewTransaction(final PropagationMode mode) {
+    if (mode == PropagationMode.REQUIRES_NEW) {
+      return true;
+    }
+    return ((mode == PropagationMode.REQUIRED) || (mode == PropagationMode.READ_ONLY))
+        && (propagator.getStatus() == Status.STATUS_NO_TRANSACTION);
+  }
+
+  @Override
+  public String toString() {
+    return "OperationInvoker [operationName=" + operationName + ", policy="
+        + boundPolicy.policy + "]";
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * Immutable description of how an operation should be called by {@link OperationInvoker}.
+ */
+public final class OperationPolicy {
+
+  private final PropagationMode mode;
+
+  private final boolean readOnly;
+
+  private final int retries;
+
+  private final int timeoutSeconds;
+
+  /**
+   * Constructor.
+   *
+   * @param mode
+   *          The propagation mode of the operation.
+   * @param timeoutSeconds
+   *          The timeout of the transactions that are started for the operation or zero to use the
+   *          default of the transaction manager. When a transaction is started with a fixed or an
+   *          adaptive timeout, the timeout of the calling thread is reset to the default of the
+   *          transaction manager, so a timeout that the caller set for the thread is discarded.
+   * @param retries
+   *          The number of times the operation is called again if the transaction that was started
+   *          for it is rolled back during commit.
+   * @param readOnly
+   *          Whether the operation does not modify any transactional resource. The operations
+   *          with {@link PropagationMode#REQUIRED} mode are called with
+   *          {@link PropagationMode#READ_ONLY} if this flag is set.
+   * @throws NullPointerException
+   *           if mode is <code>null</code>.
+   * @throws IllegalArgumentException
+   *           if timeoutSeconds or retries is negative.
+   */
+  public OperationPolicy(final PropagationMode mode, final int timeoutSeconds, final int retries,
+      final boolean readOnly) {
+    if (mode == null) {
+      throw new NullPointerException("Propagation mode must be specified");
+    }
+    if (timeoutSeconds < 0) {
+      throw new IllegalArgumentException("Timeout must not be negative: " + timeoutSeconds);
+    }
+    if (retries < 0) {
+      throw new IllegalArgumentException("Retries must not be negative: " + retries);
+    }
+    this.mode = mode;
+    this.timeoutSeconds = timeoutSeconds;
+    this.retries = retries;
+    this.readOnly = readOnly;
+  }
+
+  public PropagationMode getMode() {
+    return mode;
+  }
+
+  public int getRetries() {
+    return retries;
+  }
+
+  public int getTimeoutSeconds() {
+    return timeoutSeconds;
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  @Override
+  public String toString() {
+    return "OperationPolicy [mode=" + mode.getModeName() + ", timeoutSeconds=" + timeoutSeconds
+        + ", retries=" + retries + ", readOnly=" + readOnly + "]";
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of named operations and their {@link OperationPolicy}. The callers of an operation get
+ * an {@link OperationInvoker} that is rebound every time the policy of the operation changes, so
+ * policies can be changed at runtime without touching the callers.
+ *
+ * <p>
+ * The policies that are registered programmatically can be overridden by configuration via
+ * {@link #updated(Dictionary)} that has the same signature as
+ * <code>org.osgi.service.cm.ManagedService.updated</code>. The keys of the configuration have the
+ * <code>&lt;operationName&gt;.&lt;attribute&gt;</code> format where the attribute is one of
+ * {@value #ATTR_MODE}, {@value #ATTR_TIMEOUT}, {@value #ATTR_RETRIES} and {@value #ATTR_READ_ONLY}.
+ * The attributes that are not configured are taken from the registered or the default policy. Keys
+ * with any other attribute are rejected if the operation is registered or has an invoker, as they
+ * are most likely misspelled. Other keys (e.g. <code>service.pid</code>) are ignored.
+ *
+ * <p>
+ * If the registry has {@link AdaptiveTransactionTimeouts}, the operations whose policy does not
+ * specify a timeout get the adaptive timeout of the call site with the name of the operation.
+ */
+public class OperationPolicyRegistry {
+
+  /**
+   * Fixed timeout of the transactions that are started for an operation.
+   */
+  private static final class FixedTransactionTimeout implements TransactionTimeout {
+
+    private final int timeoutSeconds;
+
+    FixedTransactionTimeout(final int timeoutSeconds) {
+      this.timeoutSeconds = timeoutSeconds;
+    }
+
+    @Override
+    public int getTimeoutSeconds() {
+      return timeoutSeconds;
+    }
+
+    @Override
+    public void transactionCompleted(final long durationNanos) {
+      // Fixed timeouts do not depend on the duration of the transactions
+    }
+
+    @Override
+    public void transactionRolledBack(final long durationNanos) {
+      // Fixed timeouts do not depend on the duration of the transactions
+    }
+  }
+
+  public static final String ATTR_MODE = "mode";
+
+  public static final String ATTR_READ_ONLY = "readOnly";
+
+  public static final String ATTR_RETRIES = "retries";
+
+  public static final String ATTR_TIMEOUT = "timeout";
+
+  private static boolean parseBoolean(final String key, final Object value) {
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    }
+    String stringValue = String.valueOf(value).trim();
+    if ("true".equalsIgnoreCase(stringValue)) {
+      return true;
+    }
+    if ("false".equalsIgnoreCase(stringValue)) {
+      return false;
+    }
+    throw new IllegalArgumentException("Invalid boolean value of '" + key + "': " + value);
+  }
+
+  private static int parseInt(final String key, final Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    try {
+      return Integer.parseInt(String.valueOf(value).trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid integer value of '" + key + "': " + value, e);
+    }
+  }
+
+  private final AdaptiveTransactionTimeouts adaptiveTimeouts;
+
+  private volatile Map<String, Map<String, Object>> configuredAttributes =
+      Collections.emptyMap();
+
+  private final OperationPolicy defaultPolicy;
+
+  private final ConcurrentMap<String, OperationInvoker> invokers =
+      new ConcurrentHashMap<String, OperationInvoker>();
+
+  private final JTATransactionPropagator propagator;
+
+  private final Map<String, OperationPolicy> registeredPolicies =
+      new ConcurrentHashMap<String, OperationPolicy>();
+
+  /**
+   * Constructor.
+   *
+   * @param propagator
+   *          The propagator that is used by the invokers.
+   * @param defaultPolicy
+   *          The policy of the operations that are neither registered nor configured.
+   */
+  public OperationPolicyRegistry(final JTATransactionPropagator propagator,
+      final OperationPolicy defaultPolicy) {
+    this(propagator, defaultPolicy, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param propagator
+   *          The propagator that is used by the invokers.
+   * @param defaultPolicy
+   *          The policy of the operations that are neither registered nor configured.
+   * @param adaptiveTimeouts
+   *          The timeouts of the operations without an explicit timeout or <code>null</code> if
+   *          the default timeout of the transaction manager should be used for them.
+   */
+  public OperationPolicyRegistry(final JTATransactionPropagator propagator,
+      final OperationPolicy defaultPolicy, final AdaptiveTransactionTimeouts adaptiveTimeouts) {
+    this.propagator = propagator;
+    this.defaultPolicy = defaultPolicy;
+    this.adaptiveTimeouts = adaptiveTimeouts;
+  }
+
+  private OperationPolicy applyConfiguration(final OperationPolicy basePolicy,
+      final Map<String, Object> attributes) {
+    if (attributes == null) {
+      return basePolicy;
+    }
+    PropagationMode mode = basePolicy.getMode();
+    int timeoutSeconds = basePolicy.getTimeoutSeconds();
+    int retries = basePolicy.getRetries();
+    boolean readOnly = basePolicy.isReadOnly();
+    for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+      String key = attribute.getKey();
+      Object value = attribute.getValue();
+      if (key.endsWith("." + ATTR_MODE)) {
+        mode = PropagationMode.fromModeName(String.valueOf(value).trim());
+      } else if (key.endsWith("." + ATTR_TIMEOUT)) {
+        timeoutSeconds = parseInt(key, value);
+      } else if (key.endsWith("." + ATTR_RETRIES)) {
+        retries = parseInt(key, value);
+      } else if (key.endsWith("." + ATTR_READ_ONLY)) {
+        readOnly = parseBoolean(key, value);
+      } else {
+        throw new IllegalArgumentException("Unknown attribute: " + key);
+      }
+    }
+    return new OperationPolicy(mode, timeoutSeconds, retries, readOnly);
+  }
+
+  /**
+   * Returns the invoker of an operation. The same invoker instance is returned for the same
+   * operation name, so callers should look it up once and keep the reference.
+   *
+   * @param operationName
+   *          The name of the operation.
+   * @return The invoker of the operation.
+   */
+  public OperationInvoker getInvoker(final String operationName) {
+    OperationInvoker invoker = invokers.get(operationName);
+    if (invoker != null) {
+      return invoker;
+    }
+    synchronized (this) {
+      invoker = invokers.get(operationName);
+      if (invoker == null) {
+        OperationPolicy policy = resolvePolicy(operationName, configuredAttributes);
+        invoker = new OperationInvoker(operationName, propagator, policy,
+            resolveTimeout(operationName, policy));
+        invokers.put(operationName, invoker);
+      }
+      return invoker;
+    }
+  }
+
+  /**
+   * Returns the policy that is currently in effect for an operation.
+   *
+   * @param operationName
+   *          The name of the operation.
+   * @return The effective policy of the operation.
+   */
+  public OperationPolicy getPolicy(final String operationName) {
+    return resolvePolicy(operationName, configuredAttributes);
+  }
+
+  /**
+   * Registers the policy of an operation. The attributes that are specified in the configuration
+   * of the registry still override the attributes of the registered policy.
+   *
+   * @param operationName
+   *          The name of the operation.
+   * @param policy
+   *          The policy of the operation.
+   */
+  public synchronized void register(final String operationName, final OperationPolicy policy) {
+    registeredPolicies.put(operationName, policy);
+    OperationInvoker invoker = invokers.get(operationName);
+    if (invoker != null) {
+      OperationPolicy resolvedPolicy = resolvePolicy(operationName, configuredAttributes);
+      invoker.bind(resolvedPolicy, resolveTimeout(operationName, resolvedPolicy));
+    }
+  }
+
+  private OperationPolicy resolvePolicy(final String operationName,
+      final Map<String, Map<String, Object>> attributesByOperation) {
+    OperationPolicy basePolicy = registeredPolicies.get(operationName);
+    if (basePolicy == null) {
+      basePolicy = defaultPolicy;
+    }
+    return applyConfiguration(basePolicy, attributesByOperation.get(operationName));
+  }
+
+  private TransactionTimeout resolveTimeout(final String operationName,
+      final OperationPolicy policy) {
+    int timeoutSeconds = policy.getTimeoutSeconds();
+    if (timeoutSeconds > 0) {
+      return new FixedTransactionTimeout(timeoutSeconds);
+    }
+    if (adaptiveTimeouts != null) {
+      return adaptiveTimeouts.getCallSiteTimeout(operationName);
+    }
+    return null;
+  }
+
+  /**
+   * Overrides the attributes of the operation policies from configuration and rebinds all
+   * invokers. The configuration is validated completely before any invoker is rebound, so an
+   * invalid configuration does not change the policy of any operation.
+   *
+   * @param properties
+   *          The configuration or <code>null</code> to fall back to the registered policies.
+   * @throws IllegalArgumentException
+   *           if the configuration contains an invalid value or an unknown attribute of an
+   *           operation that is registered or has an invoker.
+   */
+  public synchronized void updated(final Dictionary<String, ?> properties) {
+    Map<String, Map<String, Object>> newAttributes =
+        new HashMap<String, Map<String, Object>>();
+    if (properties != null) {
+      Enumeration<String> keys = properties.keys();
+      while (keys.hasMoreElements()) {
+        String key = keys.nextElement();
+        int separatorIndex = key.lastIndexOf('.');
+        if (separatorIndex > 0) {
+          String attribute = key.substring(separatorIndex + 1);
+          String operationName = key.substring(0, separatorIndex);
+          if (ATTR_MODE.equals(attribute) || ATTR_TIMEOUT.equals(attribute)
+              || ATTR_RETRIES.equals(attribute) || ATTR_READ_ONLY.equals(attribute)) {
+            Map<String, Object> attributes = newAttributes.get(operationName);
+            if (attributes == null) {
+              attributes = new HashMap<String, Object>();
+              newAttributes.put(operationName, attributes);
+            }
+            attributes.put(key, properties.get(key));
+          } else if (invokers.containsKey(operationName)
+              || registeredPolicies.containsKey(operationName)) {
+            throw new IllegalArgumentException("Unknown attribute of operation '" + operationName
+                + "': " + key);
+          }
+        }
+      }
+    }
+
+    Map<OperationInvoker, OperationPolicy> newPolicies =
+        new HashMap<OperationInvoker, OperationPolicy>();
+    for (Map.Entry<String, OperationInvoker> invokerEntry : invokers.entrySet()) {
+      newPolicies.put(invokerEntry.getValue(),
+          resolvePolicy(invokerEntry.getKey(), newAttributes));
+    }
+    // Validating the configuration of the operations that do not have an invoker yet
+    for (String operationName : newAttributes.keySet()) {
+      resolvePolicy(operationName, newAttributes);
+    }
+
+    configuredAttributes = newAttributes;
+    for (Map.Entry<OperationInvoker, OperationPolicy> policyEntry : newPolicies.entrySet()) {
+      OperationInvoker invoker = policyEntry.getKey();
+      OperationPolicy policy = policyEntry.getValue();
+      invoker.bind(policy, resolveTimeout(invoker.getOperationName(), policy));
+    }
+  }
+}
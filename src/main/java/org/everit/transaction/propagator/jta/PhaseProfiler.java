@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sampling profiler that attributes the wall time of the calls of {@link JTATransactionPropagator}
+ * to the {@link TransactionPhase}s per call site. The call site is the class and method that called
+ * the propagator. Only every n-th call is sampled on average, so the overhead of finding the call
+ * site in the stack trace is paid by a fraction of the calls.
+ *
+ * <p>
+ * The collected times can be exported in the collapsed stack format of flame graph tools where
+ * each call site is a frame and the phases are its children.
+ */
+public class PhaseProfiler {
+
+  /**
+   * The accumulated times of a call site.
+   */
+  static final class CallSiteProfile {
+
+    private final LongAdder[] phaseNanos = new LongAdder[TransactionPhase.values().length];
+
+    private final LongAdder sampleCount = new LongAdder();
+
+    CallSiteProfile() {
+      for (int i = 0; i < phaseNanos.length; i++) {
+        phaseNanos[i] = new LongAdder();
+      }
+    }
+
+    void add(final long[] samplePhaseNanos) {
+      for (int i = 0; i < samplePhaseNanos.length; i++) {
+        if (samplePhaseNanos[i] != 0) {
+          phaseNanos[i].add(samplePhaseNanos[i]);
+        }
+      }
+      sampleCount.increment();
+    }
+  }
+
+  private static final String PROPAGATOR_API_PACKAGE = "org.everit.transaction.propagator";
+
+  private static final String PROPAGATOR_PACKAGE = PhaseProfiler.class.getPackage().getName();
+
+  private static String findCallSite() {
+    StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+    for (StackTraceElement element : stackTrace) {
+      String className = element.getClassName();
+      int lastDotIndex = className.lastIndexOf('.');
+      String packageName = (lastDotIndex < 0) ? "" : className.substring(0, lastDotIndex);
+      if (!PROPAGATOR_PACKAGE.equals(packageName)
+          && !PROPAGATOR_API_PACKAGE.equals(packageName)) {
+        return className + "." + element.getMethodName();
+      }
+    }
+    return "unknown";
+  }
+
+  private final ConcurrentMap<String, CallSiteProfile> profiles =
+      new ConcurrentHashMap<String, CallSiteProfile>();
+
+  private final int sampleInterval;
+
+  /**
+   * Constructor.
+   *
+   * @param sampleInterval
+   *          One of that many calls is sampled on average. One means that every call is sampled.
+   */
+  public PhaseProfiler(final int sampleInterval) {
+    if (sampleInterval <= 0) {
+      throw new IllegalArgumentException("Sample interval must be positive: " + sampleInterval);
+    }
+    this.sampleInterval = sampleInterval;
+  }
+
+  /**
+   * Returns the time that was attributed to a phase of a call site.
+   *
+   * @param callSite
+   *          The call site in <code>className.methodName</code> format.
+   * @param phase
+   *          The phase.
+   * @return The sum of the sampled time in nanoseconds.
+   */
+  public long getPhaseNanos(final String callSite, final TransactionPhase phase) {
+    CallSiteProfile profile = profiles.get(callSite);
+    if (profile == null) {
+      return 0;
+    }
+    return profile.phaseNanos[phase.ordinal()].sum();
+  }
+
+  /**
+   * Returns the number of sampled calls of a call site.
+   *
+   * @param callSite
+   *          The call site in <code>className.methodName</code> format.
+   * @return The number of samples.
+   */
+  public long getSampleCount(final String callSite) {
+    CallSiteProfile profile = profiles.get(callSite);
+    if (profile == null) {
+      return 0;
+    }
+    return profile.sampleCount.sum();
+  }
+
+  /**
+   * Drops all collected samples.
+   */
+  public void reset() {
+    profiles.clear();
+  }
+
+  /**
+   * Decides whether the current call is sampled.
+   *
+   * @return The profile of the call site of the current call or <code>null</code> if the call is
+   *         not sampled.
+   */
+  CallSiteProfile sampleCallSite() {
+    if ((sampleInterval > 1) && (ThreadLocalRandom.current().nextInt(sampleInterval) != 0)) {
+      return null;
+    }
+    String callSite = findCallSite();
+    CallSiteProfile profile = profiles.get(callSite);
+    if (profile == null) {
+      profile = new CallSiteProfile();
+      CallSiteProfile existing = profiles.putIfAbsent(callSite, profile);
+      if (existing != null) {
+        profile = existing;
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * Writes the collected times in collapsed stack format. Every line contains a call site and a
+   * phase separated by semicolon and the sampled time in microseconds, e.g.
+   * <code>com.example.OrderService.save;commit 1520</code>.
+   *
+   * @param writer
+   *          The writer where the lines are written.
+   * @throws IOException
+   *           if the writer throws it.
+   */
+  public void writeCollapsedStacks(final Writer writer) throws IOException {
+    Map<String, CallSiteProfile> sortedProfiles = new TreeMap<String, CallSiteProfile>(profiles);
+    for (Map.Entry<String, CallSiteProfile> entry : sortedProfiles.entrySet()) {
+      for (TransactionPhase phase : TransactionPhase.values()) {
+        long micros =
+            TimeUnit.NANOSECONDS.toMicros(entry.getValue().phaseNanos[phase.ordinal()].sum());
+        if (micros > 0) {
+          writer.write(entry.getKey() + ";" + phase.getPhaseName() + " " + micros + "\n");
+        }
+      }
+    }
+    writer.flush();
+  }
+}
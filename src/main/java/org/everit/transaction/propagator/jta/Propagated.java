@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the methods of an interface that should be called through {@link JTATransactionPropagator}
+ * with the specified propagation mode. If an interface is annotated, the annotation applies to all
+ * of its methods that are not annotated themselves.
+ *
+ * <p>
+ * The annotation is processed at compile time by
+ * {@link org.everit.transaction.propagator.jta.processor.PropagatedProcessor} that generates a
+ * class named <code>Propagating</code> followed by the name of the interface in the same package.
+ * The generated class implements the interface by calling a delegate through the propagator
+ * without reflection.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+public @interface Propagated {
+
+  /**
+   * The propagation mode of the method.
+   *
+   * @return The propagation mode.
+   */
+  PropagationMode value();
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import javax.transaction.Status;
+
+/**
+ * State of a call of {@link JTATransactionPropagator} that is observed by a {@link PhaseProfiler}
+ * or a {@link PropagationTraceRecorder}. Instances are created only for the calls that are
+ * observed, so the calls that are not observed pay only a null check per phase.
+ */
+final class PropagationCall {
+
+  private boolean callbackFailed;
+
+  final int depth;
+
+  /**
+   * The status of the transaction when the call was entered. It is set when the propagator reads
+   * the status anyway, so observing the call does not need another call of the transaction
+   * manager.
+   */
+  int entryStatus = Status.STATUS_UNKNOWN;
+
+  private boolean failed;
+
+  private long lastNanos;
+
+  final PropagationMode mode;
+
+  private final long[] phaseNanos = new long[TransactionPhase.values().length];
+
+  private final PhaseProfiler.CallSiteProfile profile;
+
+  private final PropagationTraceRecorder traceRecorder;
+
+  PropagationCall(final PropagationMode mode, final PhaseProfiler.CallSiteProfile profile,
+      final PropagationTraceRecorder traceRecorder) {
+    this.mode = mode;
+    this.profile = profile;
+    this.traceRecorder = traceRecorder;
+    depth = (traceRecorder != null) ? traceRecorder.enter() : 0;
+    lastNanos = System.nanoTime();
+  }
+
+  void callbackFailed() {
+    callbackFailed = true;
+  }
+
+  void failed() {
+    failed = true;
+  }
+
+  void finish() {
+    if (profile != null) {
+      profile.add(phaseNanos);
+    }
+    if (traceRecorder != null) {
+      traceRecorder.exit(this);
+    }
+  }
+
+  long getPhaseNanos(final TransactionPhase phase) {
+    return phaseNanos[phase.ordinal()];
+  }
+
+  PropagationOutcome getOutcome() {
+    if (callbackFailed) {
+      return PropagationOutcome.CALLBACK_FAILED;
+    }
+    if (failed) {
+      return PropagationOutcome.PROPAGATION_FAILED;
+    }
+    return PropagationOutcome.SUCCESS;
+  }
+
+  /**
+   * Attributes the time since the previous phase to the specified one.
+   */
+  void phaseEnded(final TransactionPhase phase) {
+    long nanos = System.nanoTime();
+    phaseNanos[phase.ordinal()] += nanos - lastNanos;
+    lastNanos = nanos;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.function.Supplier;
+
+/**
+ * The propagation modes of {@link JTATransactionPropagator} that can be selected by name, e.g. from
+ * configuration.
+ */
+public enum PropagationMode {
+
+  MANDATORY("mandatory") {
+    @Override
+    <R> R propagate(final JTATransactionPropagator propagator, final Supplier<R> callback,
+        final TransactionTimeout timeout) {
+      return propagator.mandatory(callback);
+    }
+  },
+
+  NEVER("never") {
+    @Override
+    <R> R propagate(final JTATransactionPropagator propagator, final Supplier<R> callback,
+        final TransactionTimeout timeout) {
+      return propagator.never(callback);
+    }
+  },
+
+  NOT_SUPPORTED("notSupported") {
+    @Override
+    <R> R propagate(final JTATransactionPropagator propagator, final Supplier<R> callback,
+        final TransactionTimeout timeout) {
+      return propagator.notSupported(callback);
+    }
+  },
+
+  REQUIRED("required") {
+    @Override
+    <R> R propagate(final JTATransactionPropagator propagator, final Supplier<R> callback,
+        final TransactionTimeout timeout) {
+      return propagator.required(callback, timeout);
+    }
+  },
+
+  REQUIRES_NEW("requiresNew") {
+    @Override
+    <R> R propagate(final JTATransactionPropagator propagator, final Supplier<R> callback,
+        final TransactionTimeout timeout) {
+      return propagator.requiresNew(callback, timeout);
+    }
+  },
+
+  SUPPORTS("supports") {
+    @Override
+    <R> R propagate(final JTATransactionPropagator propagator, final Supplier<R> callback,
+        final TransactionTimeout timeout) {
+      return propagator.supports(callback);
+    }
+  },
+
+  READ_ONLY("readOnly") {
+    @Override
+    <R> R propagate(final JTATransactionPropagator propagator, final Supplier<R> callback,
+        final TransactionTimeout timeout) {
+      return propagator.readOnly(callback, timeout);
+    }
+  };
+
+  /**
+   * Resolves a propagation mode by its name.
+   *
+   * @param name
+   *          The name of the mode as returned by {@link #getModeName()}.
+   * @return The propagation mode.
+   * @throws IllegalArgumentException
+   *           if there is no propagation mode with the specified name.
+   */
+  public static PropagationMode fromModeName(final String name) {
+    for (PropagationMode mode : values()) {
+      if (mode.modeName.equals(name)) {
+        return mode;
+      }
+    }
+    throw new IllegalArgumentException("Unknown propagation mode: " + name);
+  }
+
+  private final String modeName;
+
+  PropagationMode(final String modeName) {
+    this.modeName = modeName;
+  }
+
+  /**
+   * The name of the mode that is the same as the name of the corresponding method of
+   * {@link org.everit.transaction.propagator.TransactionPropagator}, except for
+   * {@link #READ_ONLY} that corresponds to {@link JTATransactionPropagator#readOnly(Supplier)}.
+   *
+   * @return The name of the mode.
+   */
+  public String getModeName() {
+    return modeName;
+  }
+
+  abstract <R> R propagate(JTATransactionPropagator propagator, Supplier<R> callback,
+      TransactionTimeout timeout);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * The outcome of a call of {@link JTATransactionPropagator} that is recorded by
+ * {@link PropagationTraceRecorder}.
+ */
+public enum PropagationOutcome {
+
+  /**
+   * The callback threw an exception.
+   */
+  CALLBACK_FAILED,
+
+  /**
+   * The callback succeeded or was not called, but the call threw an exception, e.g. because the
+   * status of the current transaction did not allow the propagation mode or the commit failed.
+   */
+  PROPAGATION_FAILED,
+
+  SUCCESS
+}
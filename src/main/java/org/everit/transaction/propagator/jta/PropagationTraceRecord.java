@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * A call that was read from a trace by {@link PropagationTraceReplayer}.
+ */
+public final class PropagationTraceRecord {
+
+  private final long callbackNanos;
+
+  private final int depth;
+
+  private final int entryStatus;
+
+  private final PropagationMode mode;
+
+  private final PropagationOutcome outcome;
+
+  private final long threadId;
+
+  /**
+   * Constructor.
+   *
+   * @param threadId
+   *          The identifier of the thread that made the call.
+   * @param mode
+   *          The propagation mode of the call.
+   * @param depth
+   *          The number of calls of the propagator that contained the call on the same thread.
+   * @param entryStatus
+   *          The status of the transaction when the call was entered as defined in
+   *          {@link javax.transaction.Status}.
+   * @param outcome
+   *          The outcome of the call.
+   * @param callbackNanos
+   *          The time spent in the callback including the nested calls in nanoseconds.
+   */
+  public PropagationTraceRecord(final long threadId, final PropagationMode mode, final int depth,
+      final int entryStatus, final PropagationOutcome outcome, final long callbackNanos) {
+    this.threadId = threadId;
+    this.mode = mode;
+    this.depth = depth;
+    this.entryStatus = entryStatus;
+    this.outcome = outcome;
+    this.callbackNanos = callbackNanos;
+  }
+
+  public long getCallbackNanos() {
+    return callbackNanos;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public int getEntryStatus() {
+    return entryStatus;
+  }
+
+  public PropagationMode getMode() {
+    return mode;
+  }
+
+  public PropagationOutcome getOutcome() {
+    return outcome;
+  }
+
+  public long getThreadId() {
+    return threadId;
+  }
+
+  @Override
+  public String toString() {
+    return "PropagationTraceRecord [threadId=" + threadId + ", mode=" + mode.getModeName()
+        + ", depth=" + depth + ", entryStatus=" + entryStatus + ", outcome=" + outcome
+        + ", callbackNanos=" + callbackNanos + "]";
+  }
+}
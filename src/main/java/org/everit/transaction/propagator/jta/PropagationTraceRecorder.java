@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a compact binary trace of the calls of {@link JTATransactionPropagator}. Every call is
+ * written as a fixed size record when it returns, so the nested calls of a thread precede the call
+ * that contains them. The trace can be replayed by {@link PropagationTraceReplayer} to benchmark
+ * a transaction manager with the propagation pattern of a production workload.
+ *
+ * <p>
+ * The record contains the identifier of the thread, the propagation mode, the nesting depth, the
+ * status of the transaction when the call was entered, the outcome and the time spent in the
+ * callback. The payload of the callbacks is not recorded.
+ *
+ * <p>
+ * The records are collected in buffers of the calling threads, so the traced threads do not wait
+ * for each other or for the stream. A background thread of the recorder writes the buffers to the
+ * stream periodically and when the recorder is closed. The records of the calls that return while
+ * the recorder is being closed might be missing from the trace.
+ *
+ * <p>
+ * The number of records that a thread can buffer is limited. If the stream is slower than the
+ * traced threads, the records that do not fit are dropped and counted as lost, so neither the heap
+ * nor the latency of the traced calls grows because of a slow stream.
+ */
+public class PropagationTraceRecorder implements Closeable {
+
+  /**
+   * The records of a thread that are not written to the stream yet. The thread appends to the
+   * buffers while holding the monitor of the instance that only the writer thread competes for.
+   */
+  private final class ThreadTrace {
+
+    private ByteBuffer buffer;
+
+    int depth;
+
+    private final ArrayDeque<ByteBuffer> filledBuffers = new ArrayDeque<ByteBuffer>();
+
+    private final WeakReference<Thread> owner;
+
+    private final long threadId;
+
+    ThreadTrace(final Thread thread) {
+      owner = new WeakReference<Thread>(thread);
+      threadId = thread.getId();
+    }
+
+    synchronized void append(final PropagationCall call) {
+      if (buffer == null) {
+        buffer = ByteBuffer.allocate(BUFFER_RECORD_COUNT * RECORD_SIZE);
+      } else if (!buffer.hasRemaining()) {
+        if (filledBuffers.size() >= maxFilledBufferCount) {
+          lostRecordCount.increment();
+          return;
+        }
+        filledBuffers.add(buffer);
+        buffer = ByteBuffer.allocate(BUFFER_RECORD_COUNT * RECORD_SIZE);
+      }
+      buffer.putLong(threadId);
+      buffer.put((byte) call.mode.ordinal());
+      buffer.put((byte) Math.min(call.depth, 255));
+      buffer.put((byte) call.entryStatus);
+      buffer.put((byte) call.getOutcome().ordinal());
+      buffer.putLong(call.getPhaseNanos(TransactionPhase.CALLBACK));
+    }
+
+    boolean isOwnerAlive() {
+      Thread thread = owner.get();
+      return (thread != null) && thread.isAlive();
+    }
+
+    /**
+     * Moves the buffers to the list in the order of the records. The thread allocates a new buffer
+     * only when it records the next call, so idle threads do not hold any buffer.
+     */
+    synchronized void takeRecords(final List<ByteBuffer> records) {
+      records.addAll(filledBuffers);
+      filledBuffers.clear();
+      if (buffer != null) {
+        records.add(buffer);
+        buffer = null;
+      }
+    }
+  }
+
+  private static final int BUFFER_RECORD_COUNT = 64;
+
+  private static final int DEFAULT_MAX_BUFFERED_RECORD_COUNT = 4096;
+
+  private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  static final int MAGIC = 0x50545243;
+
+  static final int RECORD_SIZE = 20;
+
+  static final int VERSION = 1;
+
+  private volatile boolean closed;
+
+  private final LongAdder lostRecordCount = new LongAdder();
+
+  private final int maxFilledBufferCount;
+
+  private final DataOutputStream out;
+
+  private final ThreadLocal<ThreadTrace> threadTrace = ThreadLocal.withInitial(() -> {
+    ThreadTrace trace = new ThreadTrace(Thread.currentThread());
+    PropagationTraceRecorder.this.threadTraces.add(trace);
+    return trace;
+  });
+
+  private final ConcurrentLinkedQueue<ThreadTrace> threadTraces =
+      new ConcurrentLinkedQueue<ThreadTrace>();
+
+  private IOException writeFailure;
+
+  private final Thread writerThread;
+
+  /**
+   * Creates a recorder that buffers at most 4096 records per thread.
+   *
+   * @param out
+   *          The stream where the trace is written. It is closed when the recorder is closed.
+   * @throws IOException
+   *           if the header cannot be written.
+   */
+  public PropagationTraceRecorder(final OutputStream out) throws IOException {
+    this(out, DEFAULT_MAX_BUFFERED_RECORD_COUNT);
+  }
+
+  /**
+   * Constructor. The header of the trace is written immediately and the writer thread of the
+   * recorder is started.
+   *
+   * @param out
+   *          The stream where the trace is written. It is closed when the recorder is closed.
+   * @param maxBufferedRecordCount
+   *          The number of records that a thread can buffer before the writer thread takes them.
+   *          It is rounded up to a multiple of 64.
+   * @throws IOException
+   *           if the header cannot be written.
+   * @throws IllegalArgumentException
+   *           if the maximum number of buffered records is not positive.
+   */
+  public PropagationTraceRecorder(final OutputStream out, final int maxBufferedRecordCount)
+      throws IOException {
+    if (maxBufferedRecordCount <= 0) {
+      throw new IllegalArgumentException("Maximum number of buffered records must be positive: "
+          + maxBufferedRecordCount);
+    }
+    // The buffer that is being filled is not counted
+    maxFilledBufferCount =
+        (((maxBufferedRecordCount + BUFFER_RECORD_COUNT) - 1) / BUFFER_RECORD_COUNT) - 1;
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.writeInt(MAGIC);
+    this.out.writeInt(VERSION);
+    writerThread = new Thread(this::writeUntilClosed, "propagation-trace-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Writes the buffered records and closes the trace.
+   *
+   * @throws IOException
+   *           if the trace cannot be closed or if writing any of the records failed before.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writerThread);
+    boolean interrupted = false;
+    while (writerThread.isAlive()) {
+      try {
+        writerThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    IOException failure = writeFailure;
+    try {
+      out.close();
+    } catch (IOException e) {
+      if (failure == null) {
+        throw e;
+      }
+      failure.addSuppressed(e);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  int enter() {
+    return threadTrace.get().depth++;
+  }
+
+  void exit(final PropagationCall call) {
+    ThreadTrace trace = threadTrace.get();
+    trace.depth--;
+    if (!closed) {
+      trace.append(call);
+    }
+  }
+
+  /**
+   * Returns the number of records that were dropped because the buffer of their thread was full.
+   *
+   * @return The number of lost records.
+   */
+  public long getLostRecordCount() {
+    return lostRecordCount.sum();
+  }
+
+  /**
+   * Writes the records of all threads and forgets the threads that are not alive anymore.
+   */
+  private void writeRecords(final List<ByteBuffer> records) {
+    Iterator<ThreadTrace> iterator = threadTraces.iterator();
+    while (iterator.hasNext()) {
+      ThreadTrace trace = iterator.next();
+      boolean ownerAlive = trace.isOwnerAlive();
+      trace.takeRecords(records);
+      if (!ownerAlive) {
+        iterator.remove();
+      }
+      for (ByteBuffer buffer : records) {
+        if (writeFailure == null) {
+          try {
+            out.write(buffer.array(), 0, buffer.position());
+          } catch (IOException e) {
+            // Failing the transactions because of the trace is not an option, so the trace is
+            // simply cut at the first failure. The failure is thrown when the recorder is closed.
+            writeFailure = e;
+          }
+        }
+      }
+      records.clear();
+    }
+  }
+
+  private void writeUntilClosed() {
+    List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+    while (!closed) {
+      LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+      writeRecords(records);
+    }
+    writeRecords(records);
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.transaction.TransactionManager;
+
+/**
+ * Re-drives the calls of a trace that was written by {@link PropagationTraceRecorder} against a
+ * propagator. The nesting of the calls is restored and every callback takes the same time as the
+ * recorded one: the nested calls are replayed and the rest of the recorded time is spent by
+ * parking the thread. The callbacks that failed originally throw an exception again. The failures
+ * that depended on the original transaction manager, e.g. a failed commit, are not reproduced.
+ */
+public final class PropagationTraceReplayer {
+
+  /**
+   * A recorded call with its nested calls.
+   */
+  private static final class Node {
+
+    final List<Node> children;
+
+    final PropagationTraceRecord record;
+
+    Node(final PropagationTraceRecord record, final List<Node> children) {
+      this.record = record;
+      this.children = children;
+    }
+  }
+
+  /**
+   * Thrown by the callbacks whose recorded counterpart failed.
+   */
+  private static final class ReplayedCallbackFailure extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    ReplayedCallbackFailure() {
+      super("Replayed callback failure", null, false, false);
+    }
+  }
+
+  /**
+   * Replays a trace file against a transaction manager and prints the elapsed time.
+   *
+   * @param args
+   *          The path of the trace file, the name of the {@link TransactionManager} class that has
+   *          a public default constructor and optionally the number of replaying threads.
+   * @throws Exception
+   *           if the trace cannot be read, the transaction manager cannot be instantiated or the
+   *           replay is interrupted.
+   */
+  public static void main(final String[] args) throws Exception {
+    if ((args.length < 2) || (args.length > 3)) {
+      System.err.println("Usage: " + PropagationTraceReplayer.class.getName()
+          + " <traceFile> <transactionManagerClass> [threadCount]");
+      return;
+    }
+    List<PropagationTraceRecord> records;
+    try (InputStream in = new FileInputStream(args[0])) {
+      records = read(in);
+    }
+    TransactionManager transactionManager = (TransactionManager) Class.forName(args[1])
+        .getConstructor().newInstance();
+    int threadCount = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+
+    PropagationTraceReplayer replayer = new PropagationTraceReplayer(records);
+    long elapsedNanos =
+        replayer.replay(new JTATransactionPropagator(transactionManager), threadCount);
+    System.out.println("Replayed " + records.size() + " calls on " + threadCount + " threads in "
+        + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, failed top level calls: "
+        + replayer.getFailedCallCount());
+  }
+
+  /**
+   * Reads the records of a trace.
+   *
+   * @param in
+   *          The stream of the trace. It is not closed by this method.
+   * @return The records in the order they were written.
+   * @throws IOException
+   *           if the stream cannot be read or it is not a trace.
+   */
+  public static List<PropagationTraceRecord> read(final InputStream in) throws IOException {
+    DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+    if ((dataIn.readInt() != PropagationTraceRecorder.MAGIC)
+        || (dataIn.readInt() != PropagationTraceRecorder.VERSION)) {
+      throw new IOException("Stream is not a propagation trace");
+    }
+    PropagationMode[] modes = PropagationMode.values();
+    PropagationOutcome[] outcomes = PropagationOutcome.values();
+    List<PropagationTraceRecord> records = new ArrayList<PropagationTraceRecord>();
+    while (true) {
+      long threadId;
+      try {
+        threadId = dataIn.readLong();
+      } catch (EOFException e) {
+        return records;
+      }
+      records.add(new PropagationTraceRecord(threadId, modes[dataIn.readByte()],
+          dataIn.readUnsignedByte(), dataIn.readByte(), outcomes[dataIn.readByte()],
+          dataIn.readLong()));
+    }
+  }
+
+  private final AtomicLong failedCallCount = new AtomicLong();
+
+  private final List<List<Node>> rootsByThread = new ArrayList<List<Node>>();
+
+  /**
+   * Constructor.
+   *
+   * @param records
+   *          The records of the trace in the order they were written.
+   */
+  public PropagationTraceReplayer(final List<PropagationTraceRecord> records) {
+    // The records of a thread arrive in post-order, so the pending calls of each depth are the
+    // children of the next call that arrives one level higher.
+    Map<Long, List<List<Node>>> pendingByThread = new TreeMap<Long, List<List<Node>>>();
+    for (PropagationTraceRecord record : records) {
+      List<List<Node>> pending =
+          pendingByThread.computeIfAbsent(record.getThreadId(), (threadId) -> new ArrayList<>());
+      int depth = record.getDepth();
+      while (pending.size() <= (depth + 1)) {
+        pending.add(new ArrayList<Node>());
+      }
+      List<Node> children = pending.get(depth + 1);
+      pending.set(depth + 1, new ArrayList<Node>());
+      pending.get(depth).add(new Node(record, children));
+    }
+    for (List<List<Node>> pending : pendingByThread.values()) {
+      rootsByThread.add(pending.get(0));
+    }
+  }
+
+  /**
+   * Returns the number of top level calls that threw an exception during the last replay.
+   *
+   * @return The number of failed calls.
+   */
+  public long getFailedCallCount() {
+    return failedCallCount.get();
+  }
+
+  /**
+   * Replays the trace. The calls of every recorded thread are replayed sequentially by one of the
+   * replaying threads. If there are more recorded threads than replaying ones, a replaying thread
+   * replays the calls of several recorded threads one after the other.
+   *
+   * @param propagator
+   *          The propagator that the calls are replayed against.
+   * @param threadCount
+   *          The number of replaying threads.
+   * @return The elapsed time of the replay in nanoseconds.
+   * @throws InterruptedException
+   *           if the current thread is interrupted while waiting for the replay.
+   */
+  public long replay(final JTATransactionPropagator propagator, final int threadCount)
+      throws InterruptedException {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+    }
+    failedCallCount.set(0);
+    CountDownLatch startLatch = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      int threadIndex = i;
+      threads[i] = new Thread(() -> {
+        try {
+          startLatch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int j = threadIndex; j < rootsByThread.size(); j += threadCount) {
+          for (Node root : rootsByThread.get(j)) {
+            try {
+              replay(propagator, root);
+            } catch (RuntimeException e) {
+              failedCallCount.incrementAndGet();
+            }
+          }
+        }
+      }, "trace-replay-" + i);
+      threads[i].start();
+    }
+
+    long startNanos = System.nanoTime();
+    startLatch.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return System.nanoTime() - startNanos;
+  }
+
+  private Object replay(final JTATransactionPropagator propagator, final Node node) {
+    return node.record.getMode().propagate(propagator, () -> replayCallback(propagator, node),
+        null);
+  }
+
+  private Object replayCallback(final JTATransactionPropagator propagator, final Node node) {
+    long startNanos = System.nanoTime();
+    for (Node child : node.children) {
+      try {
+        replay(propagator, child);
+      } catch (RuntimeException e) {
+        // If the recorded callback did not handle the failure of the nested call, the callback is
+        // recorded as failed and the failure is reproduced below.
+      }
+    }
+    long remainingNanos = node.record.getCallbackNanos() - (System.nanoTime() - startNanos);
+    if (remainingNanos > 0) {
+      LockSupport.parkNanos(remainingNanos);
+    }
+    if (node.record.getOutcome() == PropagationOutcome.CALLBACK_FAILED) {
+      throw new ReplayedCallbackFailure();
+    }
+    return null;
+  }
+}
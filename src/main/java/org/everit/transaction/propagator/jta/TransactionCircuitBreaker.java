@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker that protects the node from piling up threads in the commit of the transaction
+ * manager when the transaction log or a resource manager stalls. The commits and the
+ * {@link javax.transaction.SystemException}s of begin and commit are counted in fixed time
+ * windows. If the rate of the slow commits or of the system failures crosses its threshold, the
+ * circuit opens and {@link JTATransactionPropagator} rejects the new top level transactions with
+ * {@link TransactionCircuitOpenException} immediately. Nested transactions and calls within an
+ * ongoing transaction are not rejected, so the transactions that are already running can
+ * complete.
+ *
+ * <p>
+ * After the open period the circuit becomes half-open and lets a limited number of probe
+ * transactions through. If enough of them commit fast, the circuit closes, if any of them is slow
+ * or fails, the circuit opens again. Only the probes of the current half-open round count, so the
+ * commits of the nested transactions and of the transactions that were started before the circuit
+ * opened neither close nor open the circuit. A probe that ends without commit, e.g. with rollback,
+ * gives its permit back.
+ */
+public class TransactionCircuitBreaker {
+
+  /**
+   * The states of the circuit.
+   */
+  public enum State {
+
+    CLOSED,
+
+    HALF_OPEN,
+
+    OPEN
+  }
+
+  private static final long PERMIT_MASK = 0xFFFFFFFFL;
+
+  private static final int ROUND_SHIFT = 32;
+
+  private final AtomicLong commitCount = new AtomicLong();
+
+  private final int minimumCallCount;
+
+  private final long openNanos;
+
+  private final int probeCount;
+
+  /**
+   * The number of the current half-open round in the upper and the number of the probe permits
+   * that are left in the round in the lower 32 bits. The two are changed together, so a probe is
+   * always admitted against the permits of the round that it is counted in. Round zero is never
+   * used, it means that a transaction is not a probe.
+   */
+  private final AtomicLong probes = new AtomicLong();
+
+  private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+  private final AtomicLong slowCommitCount = new AtomicLong();
+
+  private final long slowCommitNanos;
+
+  private final int slowCommitPercentage;
+
+  private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+  private final AtomicLong stateChangeNanos = new AtomicLong(System.nanoTime());
+
+  private final AtomicLong systemFailureCount = new AtomicLong();
+
+  private final int systemFailurePercentage;
+
+  private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+
+  private final long windowNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param slowCommitMillis
+   *          The duration above which a commit counts as slow.
+   * @param slowCommitPercentage
+   *          The percentage of slow commits within a window that opens the circuit.
+   * @param systemFailurePercentage
+   *          The percentage of system failures within a window that opens the circuit.
+   * @param minimumCallCount
+   *          The number of commits and failures that a window must contain before the rates are
+   *          evaluated.
+   * @param windowMillis
+   *          The length of a window.
+   * @param openMillis
+   *          The time while the circuit stays open before the probe transactions are let through.
+   * @param probeCount
+   *          The number of probe transactions that are let through in the half-open state and
+   *          that must commit fast to close the circuit.
+   * @throws IllegalArgumentException
+   *           if a duration, the minimum call count or the probe count is not positive or a
+   *           percentage is not between 1 and 100.
+   */
+  public TransactionCircuitBreaker(final long slowCommitMillis, final int slowCommitPercentage,
+      final int systemFailurePercentage, final int minimumCallCount, final long windowMillis,
+      final long openMillis, final int probeCount) {
+    if ((slowCommitMillis <= 0) || (windowMillis <= 0) || (openMillis <= 0)) {
+      throw new IllegalArgumentException("Durations must be positive: slowCommitMillis="
+          + slowCommitMillis + ", windowMillis=" + windowMillis + ", openMillis=" + openMillis);
+    }
+    if ((slowCommitPercentage < 1) || (slowCommitPercentage > 100)
+        || (systemFailurePercentage < 1) || (systemFailurePercentage > 100)) {
+      throw new IllegalArgumentException("Percentages must be between 1 and 100: "
+          + slowCommitPercentage + ", " + systemFailurePercentage);
+    }
+    if ((minimumCallCount <= 0) || (probeCount <= 0)) {
+      throw new IllegalArgumentException("Minimum call count and probe count must be positive: "
+          + minimumCallCount + ", " + probeCount);
+    }
+    slowCommitNanos = TimeUnit.MILLISECONDS.toNanos(slowCommitMillis);
+    this.slowCommitPercentage = slowCommitPercentage;
+    this.systemFailurePercentage = systemFailurePercentage;
+    this.minimumCallCount = minimumCallCount;
+    windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.probeCount = probeCount;
+  }
+
+  /**
+   * Called before a new top level transaction is started.
+   *
+   * @return The half-open round that the transaction is admitted in as a probe or zero if the
+   *         transaction is not a probe.
+   * @throws TransactionCircuitOpenException
+   *           if the circuit is open or no more probes are allowed in the half-open state.
+   */
+  long acquire() {
+    State currentState = state.get();
+    if (currentState == State.CLOSED) {
+      return 0;
+    }
+    long nanos = System.nanoTime();
+    long changeNanos = stateChangeNanos.get();
+    if (currentState == State.OPEN) {
+      if ((nanos - changeNanos) < openNanos) {
+        throw new TransactionCircuitOpenException("Transaction circuit is open");
+      }
+      // The round is started before the state becomes visible, so no caller is admitted against
+      // the permits of the previous half-open round
+      if (stateChangeNanos.compareAndSet(changeNanos, nanos)) {
+        long round = startProbeRound();
+        resetWindow(nanos);
+        state.set(State.HALF_OPEN);
+        return round;
+      }
+      if (state.get() != State.HALF_OPEN) {
+        throw new TransactionCircuitOpenException("Transaction circuit is open");
+      }
+      changeNanos = stateChangeNanos.get();
+    }
+    long round = takeProbePermit();
+    if (round != 0) {
+      return round;
+    }
+    // A probe may hang in the transaction manager. A new round of probes is let through after the
+    // open period, otherwise the circuit would never close.
+    if (((nanos - changeNanos) >= openNanos) && (state.get() == State.HALF_OPEN)
+        && stateChangeNanos.compareAndSet(changeNanos, nanos)) {
+      return startProbeRound();
+    }
+    throw new TransactionCircuitOpenException("Transaction circuit is half-open and the maximum "
+        + "number of probe transactions are running");
+  }
+
+  private boolean changeState(final State expectedState, final State newState,
+      final long nanos) {
+    // The change time is written first, so a caller that sees the new state does not see the
+    // change time of the previous state
+    stateChangeNanos.set(nanos);
+    if (!state.compareAndSet(expectedState, newState)) {
+      return false;
+    }
+    resetWindow(nanos);
+    return true;
+  }
+
+  /**
+   * Called when the commit of a transaction returned or threw an exception other than
+   * {@link javax.transaction.SystemException}.
+   *
+   * @param durationNanos
+   *          The duration of the commit.
+   * @param round
+   *          The half-open round that was returned by {@link #acquire()} when the transaction was
+   *          admitted or zero if the transaction was not admitted by this circuit breaker.
+   */
+  void commitCompleted(final long durationNanos, final long round) {
+    boolean slow = durationNanos >= slowCommitNanos;
+    State currentState = state.get();
+    if (currentState == State.HALF_OPEN) {
+      if (!isCurrentProbe(round)) {
+        return;
+      }
+      if (slow) {
+        changeState(State.HALF_OPEN, State.OPEN, System.nanoTime());
+      } else if (probeSuccesses.incrementAndGet() >= probeCount) {
+        changeState(State.HALF_OPEN, State.CLOSED, System.nanoTime());
+      }
+    } else if (currentState == State.CLOSED) {
+      rollWindow();
+      commitCount.incrementAndGet();
+      if (slow) {
+        slowCommitCount.incrementAndGet();
+      }
+      evaluate();
+    }
+  }
+
+  private void evaluate() {
+    long commits = commitCount.get();
+    long failures = systemFailureCount.get();
+    long total = commits + failures;
+    if (total < minimumCallCount) {
+      return;
+    }
+    boolean slowCommitRateExceeded =
+        (commits > 0) && ((slowCommitCount.get() * 100) >= (slowCommitPercentage * commits));
+    boolean systemFailureRateExceeded = (failures * 100) >= (systemFailurePercentage * total);
+    if (slowCommitRateExceeded || systemFailureRateExceeded) {
+      changeState(State.CLOSED, State.OPEN, System.nanoTime());
+    }
+  }
+
+  public State getState() {
+    return state.get();
+  }
+
+  private boolean isCurrentProbe(final long round) {
+    return (round != 0) && (round == (probes.get() >>> ROUND_SHIFT));
+  }
+
+  /**
+   * Called when a transaction that was admitted by {@link #acquire()} ended without commit, so a
+   * probe gives its permit back.
+   *
+   * @param round
+   *          The half-open round that was returned by {@link #acquire()}.
+   */
+  void probeEnded(final long round) {
+    if ((state.get() == State.HALF_OPEN) && (round != 0)) {
+      probes.updateAndGet(
+          (current) -> ((current >>> ROUND_SHIFT) == round) ? (current + 1) : current);
+    }
+  }
+
+  private void resetCounts() {
+    commitCount.set(0);
+    slowCommitCount.set(0);
+    systemFailureCount.set(0);
+  }
+
+  private void resetWindow(final long nanos) {
+    windowStartNanos.set(nanos);
+    resetCounts();
+  }
+
+  private void rollWindow() {
+    long nanos = System.nanoTime();
+    long startNanos = windowStartNanos.get();
+    if (((nanos - startNanos) >= windowNanos)
+        && windowStartNanos.compareAndSet(startNanos, nanos)) {
+      resetCounts();
+    }
+  }
+
+  private long startProbeRound() {
+    probeSuccesses.set(0);
+    long started = probes.updateAndGet(
+        (current) -> (((current >>> ROUND_SHIFT) + 1) << ROUND_SHIFT) | (probeCount - 1));
+    return started >>> ROUND_SHIFT;
+  }
+
+  /**
+   * Called when begin or commit threw a {@link javax.transaction.SystemException}.
+   *
+   * @param round
+   *          The half-open round that was returned by {@link #acquire()} when the transaction was
+   *          admitted or zero if the transaction was not admitted by this circuit breaker.
+   */
+  void systemFailed(final long round) {
+    State currentState = state.get();
+    if (currentState == State.HALF_OPEN) {
+      if (isCurrentProbe(round)) {
+        changeState(State.HALF_OPEN, State.OPEN, System.nanoTime());
+      }
+    } else if (currentState == State.CLOSED) {
+      rollWindow();
+      systemFailureCount.incrementAndGet();
+      evaluate();
+    }
+  }
+
+  /**
+   * Takes a probe permit of the current half-open round. The permits never go below zero, so the
+   * rejected callers do not swallow the permits that the ended probes give back.
+   *
+   * @return The round of the permit or zero if no permit is left.
+   */
+  private long takeProbePermit() {
+    while (true) {
+      long current = probes.get();
+      if ((current & PERMIT_MASK) == 0) {
+        return 0;
+      }
+      if (probes.compareAndSet(current, current - 1)) {
+        return current >>> ROUND_SHIFT;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TransactionCircuitBreaker [state=" + state.get() + ", commitCount=" + commitCount.get()
+        + ", slowCommitCount=" + slowCommitCount.get() + ", systemFailureCount="
+        + systemFailureCount.get() + "]";
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Delivers the begin, commit, rollback, suspend and resume events of
+ * {@link JTATransactionPropagator} to subscribers that poll them on their own threads. The events
+ * are written into a fixed number of ring buffers that are allocated with the bus. Every thread
+ * publishes into the ring that is selected by its identifier, so the threads share the rings
+ * without any per-thread state and the memory of the bus does not depend on the number of
+ * threads. Publishing claims a slot with a single atomic increment, it needs neither locking nor
+ * allocation and it never waits for the subscribers. If a subscriber does not keep up, the oldest
+ * events of a ring are overwritten and the subscriber counts them as lost.
+ */
+public class TransactionEventBus {
+
+  /**
+   * The events of the threads of a stripe. Every slot takes four longs: the header with the
+   * sequence, the type and the mode of the event, the timestamp, the identifier of the thread and
+   * a check value. The slot is marked as being written first and the header is written last with
+   * release semantics, so a reader that sees the same header before and after reading the other
+   * fields has read them after the slot was written. The check value tells the reader if a
+   * publisher that was overtaken by a whole round of the ring mixed its fields into the slot.
+   */
+  static final class EventRing {
+
+    static final int SLOT_SIZE = 4;
+
+    static final long WRITING = -1;
+
+    static long check(final long sequence, final long threadId, final long timestampNanos) {
+      return sequence ^ threadId ^ timestampNanos;
+    }
+
+    final AtomicLong claimedSequence = new AtomicLong();
+
+    final int mask;
+
+    final AtomicLongArray slots;
+
+    EventRing(final int capacity) {
+      slots = new AtomicLongArray(capacity * SLOT_SIZE);
+      mask = capacity - 1;
+    }
+
+    void publish(final long threadId, final TransactionEventType type,
+        final PropagationMode mode) {
+      long sequence = claimedSequence.incrementAndGet();
+      int index = ((int) sequence & mask) * SLOT_SIZE;
+      long timestampNanos = System.nanoTime();
+      slots.lazySet(index, WRITING);
+      slots.lazySet(index + 1, timestampNanos);
+      slots.lazySet(index + 2, threadId);
+      slots.lazySet(index + 3, check(sequence, threadId, timestampNanos));
+      slots.lazySet(index,
+          (sequence << HEADER_SEQUENCE_SHIFT) | (type.ordinal() << HEADER_TYPE_SHIFT)
+              | ((mode == null) ? 0 : (mode.ordinal() + 1)));
+    }
+  }
+
+  static final int HEADER_FIELD_MASK = 0xF;
+
+  static final int HEADER_SEQUENCE_SHIFT = 8;
+
+  static final int HEADER_TYPE_SHIFT = 4;
+
+  private static int defaultStripeCount() {
+    int processorCount = Runtime.getRuntime().availableProcessors();
+    return Integer.highestOneBit((processorCount * 2) - 1) << 1;
+  }
+
+  private final int capacity;
+
+  final EventRing[] rings;
+
+  private final int stripeMask;
+
+  /**
+   * Creates a bus with twice as many rings as the number of available processors, rounded up to
+   * a power of two.
+   *
+   * @param capacity
+   *          The number of events that a ring can hold. It must be a power of two.
+   */
+  public TransactionEventBus(final int capacity) {
+    this(capacity, defaultStripeCount());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity
+   *          The number of events that a ring can hold. It must be a power of two.
+   * @param stripeCount
+   *          The number of rings that the publishing threads are distributed among. It must be a
+   *          power of two.
+   */
+  public TransactionEventBus(final int capacity, final int stripeCount) {
+    if ((capacity <= 0) || (Integer.bitCount(capacity) != 1)) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    }
+    if ((stripeCount <= 0) || (Integer.bitCount(stripeCount) != 1)) {
+      throw new IllegalArgumentException("Stripe count must be a power of two: " + stripeCount);
+    }
+    this.capacity = capacity;
+    rings = new EventRing[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      rings[i] = new EventRing(capacity);
+    }
+    stripeMask = stripeCount - 1;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getStripeCount() {
+    return rings.length;
+  }
+
+  void publish(final TransactionEventType type, final PropagationMode mode) {
+    long threadId = Thread.currentThread().getId();
+    rings[(int) threadId & stripeMask].publish(threadId, type, mode);
+  }
+
+  /**
+   * Creates a new subscription that receives the events that are published after this call. The
+   * subscription must be polled by one thread at a time.
+   *
+   * @return The subscription.
+   */
+  public TransactionEventSubscription subscribe() {
+    return new TransactionEventSubscription(this);
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * Receives the events that are polled by a {@link TransactionEventSubscription}.
+ */
+@FunctionalInterface
+public interface TransactionEventHandler {
+
+  /**
+   * Called on the polling thread for every event.
+   *
+   * @param threadId
+   *          The identifier of the thread that published the event.
+   * @param type
+   *          The type of the event.
+   * @param mode
+   *          The propagation mode of the call that published the event.
+   * @param timestampNanos
+   *          The value of {@link System#nanoTime()} when the event was published.
+   */
+  void onEvent(long threadId, TransactionEventType type, PropagationMode mode,
+      long timestampNanos);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * The position of a subscriber in the rings of a {@link TransactionEventBus}. A subscription is not
+ * thread safe, it must be polled by one thread at a time.
+ */
+public final class TransactionEventSubscription {
+
+  private static final PropagationMode[] MODES = PropagationMode.values();
+
+  private static final TransactionEventType[] TYPES = TransactionEventType.values();
+
+  private final TransactionEventBus eventBus;
+
+  private long lostEventCount;
+
+  /**
+   * The next sequence to read from every ring by the index of the ring in the bus.
+   */
+  private final long[] nextSequences;
+
+  TransactionEventSubscription(final TransactionEventBus eventBus) {
+    this.eventBus = eventBus;
+    TransactionEventBus.EventRing[] rings = eventBus.rings;
+    nextSequences = new long[rings.length];
+    for (int i = 0; i < nextSequences.length; i++) {
+      nextSequences[i] = rings[i].claimedSequence.get() + 1;
+    }
+  }
+
+  /**
+   * Returns the number of events that were overwritten before this subscription could read them.
+   *
+   * @return The number of lost events.
+   */
+  public long getLostEventCount() {
+    return lostEventCount;
+  }
+
+  /**
+   * Passes the events that were published since the previous poll to the handler. The events of a
+   * publishing thread are passed in the order they were published.
+   *
+   * @param handler
+   *          The handler that is called for every event on the current thread.
+   * @return The number of passed events.
+   */
+  public int poll(final TransactionEventHandler handler) {
+    TransactionEventBus.EventRing[] rings = eventBus.rings;
+    int eventCount = 0;
+    for (int i = 0; i < rings.length; i++) {
+      eventCount += pollRing(rings[i], i, handler);
+    }
+    return eventCount;
+  }
+
+  private int pollRing(final TransactionEventBus.EventRing ring, final int ringIndex,
+      final TransactionEventHandler handler) {
+    long nextSequence = nextSequences[ringIndex];
+    int capacity = ring.mask + 1;
+    int eventCount = 0;
+    while (true) {
+      int index = ((int) nextSequence & ring.mask) * TransactionEventBus.EventRing.SLOT_SIZE;
+      long header = ring.slots.get(index);
+      if (header == TransactionEventBus.EventRing.WRITING) {
+        // The slot is being written, the next poll continues from here.
+        break;
+      }
+      long sequence = header >>> TransactionEventBus.HEADER_SEQUENCE_SHIFT;
+      if (sequence < nextSequence) {
+        break;
+      }
+      if (sequence > nextSequence) {
+        // The slot was overwritten, so only the last capacity events of the ring are available.
+        long oldestAvailableSequence = (sequence - capacity) + 1;
+        lostEventCount += oldestAvailableSequence - nextSequence;
+        nextSequence = oldestAvailableSequence;
+        continue;
+      }
+      long timestampNanos = ring.slots.get(index + 1);
+      long threadId = ring.slots.get(index + 2);
+      long check = ring.slots.get(index + 3);
+      if (ring.slots.get(index) != header) {
+        // Overwritten while reading, the next round counts it as lost.
+        continue;
+      }
+      if (check != TransactionEventBus.EventRing.check(sequence, threadId, timestampNanos)) {
+        // The fields were mixed with the fields of a publisher that was a round ahead.
+        lostEventCount++;
+      } else {
+        int modeOrdinal = (int) header & TransactionEventBus.HEADER_FIELD_MASK;
+        handler.onEvent(threadId,
+            TYPES[(int) (header >>> TransactionEventBus.HEADER_TYPE_SHIFT)
+                & TransactionEventBus.HEADER_FIELD_MASK],
+            (modeOrdinal == 0) ? null : MODES[modeOrdinal - 1], timestampNanos);
+        eventCount++;
+      }
+      nextSequence++;
+    }
+    nextSequences[ringIndex] = nextSequence;
+    return eventCount;
+  }
+}
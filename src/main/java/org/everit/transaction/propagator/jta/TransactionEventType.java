@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * The types of the events that {@link JTATransactionPropagator} publishes to a
+ * {@link TransactionEventBus}.
+ */
+public enum TransactionEventType {
+
+  BEGIN,
+
+  COMMIT,
+
+  /**
+   * The commit threw an exception, so the transaction is rolled back or its outcome is heuristic.
+   */
+  COMMIT_FAILED,
+
+  RESUME,
+
+  ROLLBACK,
+
+  SUSPEND
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * Stores a value for the transaction that is associated with the current thread, similarly to how
+ * {@link ThreadLocal} stores a value for the current thread. The value is visible wherever the
+ * transaction is associated, including after it is resumed, and it is dropped when the transaction
+ * completes. Instances are created by {@link TransactionLocalStorage#newTransactionLocal()}.
+ *
+ * @param <T>
+ *          The type of the stored value.
+ */
+public final class TransactionLocal<T> {
+
+  private final int index;
+
+  private final TransactionLocalStorage storage;
+
+  TransactionLocal(final TransactionLocalStorage storage, final int index) {
+    this.storage = storage;
+    this.index = index;
+  }
+
+  /**
+   * Returns the value of the current transaction.
+   *
+   * @return The value or <code>null</code> if no value was set in the current transaction.
+   * @throws IllegalStateException
+   *           if there is no transaction associated with the current thread.
+   */
+  @SuppressWarnings("unchecked")
+  public T get() {
+    return (T) storage.get(index);
+  }
+
+  /**
+   * Removes the value of the current transaction.
+   *
+   * @throws IllegalStateException
+   *           if there is no transaction associated with the current thread.
+   */
+  public void remove() {
+    storage.set(index, null);
+  }
+
+  /**
+   * Sets the value of the current transaction.
+   *
+   * @param value
+   *          The value.
+   * @throws IllegalStateException
+   *           if there is no transaction associated with the current thread.
+   * @throws org.everit.transaction.unchecked.UncheckedRollbackException
+   *           if this is the first value of the transaction and the transaction is already marked
+   *           for rollback.
+   */
+  public void set(final T value) {
+    storage.set(index, value);
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.everit.transaction.unchecked.UncheckedSystemException;
+
+/**
+ * Storage of the values of {@link TransactionLocal}s. The values are stored per transaction in an
+ * array where every {@link TransactionLocal} has its own index, so the values follow the
+ * transaction when it is suspended, resumed or associated with another thread. The storage itself
+ * does not hold any thread local state; the transaction is looked up via
+ * {@link TransactionManager#getTransaction()}, which is usually backed by a thread local in the
+ * transaction manager. The values of a transaction are dropped when the transaction completes.
+ */
+public class TransactionLocalStorage {
+
+  /**
+   * The values of the {@link TransactionLocal}s of a transaction.
+   */
+  private final class Slots implements Synchronization {
+
+    private final Transaction transaction;
+
+    volatile Object[] values;
+
+    Slots(final Transaction transaction, final int size) {
+      this.transaction = transaction;
+      values = new Object[size];
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+      slotsByTransaction.remove(transaction, this);
+    }
+
+    @Override
+    public void beforeCompletion() {
+      // Values are kept until the transaction is completed
+    }
+
+    synchronized void set(final int index, final Object value) {
+      Object[] currentValues = values;
+      if (index >= currentValues.length) {
+        currentValues = Arrays.copyOf(currentValues, slotCount.get());
+      }
+      currentValues[index] = value;
+      values = currentValues;
+    }
+  }
+
+  private final AtomicInteger slotCount = new AtomicInteger();
+
+  private final ConcurrentMap<Transaction, Slots> slotsByTransaction =
+      new ConcurrentHashMap<Transaction, Slots>();
+
+  private final TransactionManager transactionManager;
+
+  public TransactionLocalStorage(final TransactionManager transactionManager) {
+    this.transactionManager = transactionManager;
+  }
+
+  Object get(final int index) {
+    Slots slots = slotsByTransaction.get(getTransaction());
+    if (slots == null) {
+      return null;
+    }
+    Object[] values = slots.values;
+    if (index >= values.length) {
+      return null;
+    }
+    return values[index];
+  }
+
+  private Transaction getTransaction() {
+    Transaction transaction;
+    try {
+      transaction = transactionManager.getTransaction();
+    } catch (SystemException e) {
+      throw new UncheckedSystemException(e);
+    }
+    if (transaction == null) {
+      throw new IllegalStateException("No transaction is associated with the current thread");
+    }
+    return transaction;
+  }
+
+  /**
+   * Returns the number of transactions that have values in this storage.
+   *
+   * @return The number of transactions.
+   */
+  public int getTransactionCount() {
+    return slotsByTransaction.size();
+  }
+
+  /**
+   * Creates a new {@link TransactionLocal} that stores its values in this storage.
+   *
+   * @return The new {@link TransactionLocal}.
+   */
+  public <T> TransactionLocal<T> newTransactionLocal() {
+    return new TransactionLocal<T>(this, slotCount.getAndIncrement());
+  }
+
+  void set(final int index, final Object value) {
+    Transaction transaction = getTransaction();
+    Slots slots = slotsByTransaction.get(transaction);
+    if (slots == null) {
+      if (value == null) {
+        return;
+      }
+      Slots newSlots = new Slots(transaction, slotCount.get());
+      slots = slotsByTransaction.putIfAbsent(transaction, newSlots);
+      if (slots == null) {
+        // Only the slots that won the race are registered, so a transaction has one
+        // synchronization and the values of concurrent first writes are not lost.
+        slots = newSlots;
+        try {
+          transaction.registerSynchronization(slots);
+        } catch (RollbackException e) {
+          slotsByTransaction.remove(transaction, slots);
+          throw new UncheckedRollbackException(e);
+        } catch (SystemException e) {
+          slotsByTransaction.remove(transaction, slots);
+          throw new UncheckedSystemException(e);
+        }
+      }
+    }
+    slots.set(index, value);
+  }
+}
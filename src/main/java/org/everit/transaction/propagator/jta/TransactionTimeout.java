@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta;
+
+/**
+ * Provides the timeout of the transactions that are started by {@link JTATransactionPropagator}
+ * and gets notified about their duration.
+ */
+interface TransactionTimeout {
+
+  /**
+   * Returns the timeout of the transaction that is about to be started.
+   *
+   * @return The timeout in seconds or zero to use the default of the transaction manager.
+   */
+  int getTimeoutSeconds();
+
+  /**
+   * Called when a transaction that was started with the timeout of this instance is committed,
+   * when its callback failed, when it was rolled back at the end of a
+   * {@link PropagationMode#READ_ONLY} call or when its commit failed for other reasons than a
+   * rollback.
+   *
+   * @param durationNanos
+   *          The time between starting and ending the transaction in nanoseconds.
+   */
+  void transactionCompleted(long durationNanos);
+
+  /**
+   * Called when the commit of a transaction that was started with the timeout of this instance
+   * failed because the transaction manager rolled the transaction back, which is also the case if
+   * the transaction timed out.
+   *
+   * @param durationNanos
+   *          The time between starting the transaction and the failure in nanoseconds.
+   */
+  void transactionRolledBack(long durationNanos);
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+import org.everit.transaction.propagator.jta.Propagated;
+
+/**
+ * Generates a delegating implementation for every interface that has a {@link Propagated}
+ * annotation on itself or on any of its methods. The methods with a propagation mode call the
+ * corresponding method of {@link org.everit.transaction.propagator.jta.JTATransactionPropagator}
+ * directly with a lambda that calls the delegate, so neither reflection nor proxy generation is
+ * needed at runtime. The other methods call the delegate without propagation.
+ *
+ * <p>
+ * Methods that declare checked exceptions cannot be called within the callbacks of the propagator
+ * and are reported as errors.
+ */
+@SupportedAnnotationTypes("org.everit.transaction.propagator.jta.Propagated")
+public class PropagatedProcessor extends AbstractProcessor {
+
+  private static final String GENERATED_CLASS_PREFIX = "Propagating";
+
+  private static final String PROPAGATOR_CLASS_NAME =
+      "org.everit.transaction.propagator.jta.JTATransactionPropagator";
+
+  private void appendParameters(final StringBuilder sb, final ExecutableElement method,
+      final ExecutableType methodType) {
+    List<? extends VariableElement> parameters = method.getParameters();
+    List<? extends TypeMirror> parameterTypes = methodType.getParameterTypes();
+    for (int i = 0, n = parameters.size(); i < n; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      TypeMirror type = parameterTypes.get(i);
+      sb.append("final ");
+      if (method.isVarArgs() && (i == (n - 1)) && (type.getKind() == TypeKind.ARRAY)) {
+        sb.append(((ArrayType) type).getComponentType()).append("...");
+      } else {
+        sb.append(type);
+      }
+      sb.append(' ').append(parameters.get(i).getSimpleName());
+    }
+  }
+
+  private void appendTypeParameters(final StringBuilder sb,
+      final List<? extends TypeParameterElement> typeParameters, final boolean withBounds) {
+    if (typeParameters.isEmpty()) {
+      return;
+    }
+    sb.append('<');
+    for (int i = 0; i < typeParameters.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      TypeParameterElement typeParameter = typeParameters.get(i);
+      sb.append(typeParameter.getSimpleName());
+      if (withBounds) {
+        String separator = " extends ";
+        for (TypeMirror bound : typeParameter.getBounds()) {
+          if (!"java.lang.Object".equals(bound.toString())) {
+            sb.append(separator).append(bound);
+            separator = " & ";
+          }
+        }
+      }
+    }
+    sb.append('>');
+  }
+
+  private String createDelegateCall(final ExecutableElement method) {
+    StringBuilder sb = new StringBuilder("this.delegate.");
+    sb.append(method.getSimpleName()).append('(');
+    List<? extends VariableElement> parameters = method.getParameters();
+    for (int i = 0; i < parameters.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(parameters.get(i).getSimpleName());
+    }
+    return sb.append(')').toString();
+  }
+
+  private String createGeneratedSimpleName(final TypeElement interfaceElement) {
+    StringBuilder sb = new StringBuilder(interfaceElement.getSimpleName());
+    Element enclosingElement = interfaceElement.getEnclosingElement();
+    while (enclosingElement.getKind() != ElementKind.PACKAGE) {
+      sb.insert(0, '_').insert(0, enclosingElement.getSimpleName());
+      enclosingElement = enclosingElement.getEnclosingElement();
+    }
+    return GENERATED_CLASS_PREFIX + sb;
+  }
+
+  private void generate(final TypeElement interfaceElement) throws IOException {
+    PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(interfaceElement);
+    String simpleName = createGeneratedSimpleName(interfaceElement);
+    String interfaceName = interfaceElement.getQualifiedName().toString();
+
+    StringBuilder interfaceType = new StringBuilder(interfaceName);
+    appendTypeParameters(interfaceType, interfaceElement.getTypeParameters(), false);
+
+    StringBuilder sb = new StringBuilder();
+    if (!packageElement.isUnnamed()) {
+      sb.append("package ").append(packageElement.getQualifiedName()).append(";\n\n");
+    }
+    sb.append("/**\n * Calls the methods of {@link ").append(interfaceName)
+        .append("} through a propagator. Generated by\n * {@link ")
+        .append(PropagatedProcessor.class.getName()).append("}.\n */\n");
+    sb.append("public final class ").append(simpleName);
+    appendTypeParameters(sb, interfaceElement.getTypeParameters(), true);
+    sb.append(" implements ").append(interfaceType).append(" {\n\n");
+    sb.append("  private final ").append(interfaceType).append(" delegate;\n\n");
+    sb.append("  private final ").append(PROPAGATOR_CLASS_NAME).append(" propagator;\n\n");
+    sb.append("  public ").append(simpleName).append("(final ").append(interfaceType)
+        .append(" delegate,\n      final ").append(PROPAGATOR_CLASS_NAME)
+        .append(" propagator) {\n");
+    sb.append("    this.delegate = delegate;\n    this.propagator = propagator;\n  }\n");
+
+    Propagated interfaceAnnotation = interfaceElement.getAnnotation(Propagated.class);
+    Set<String> signatures = new HashSet<String>();
+    for (Element member : processingEnv.getElementUtils().getAllMembers(interfaceElement)) {
+      if ((member.getKind() != ElementKind.METHOD)
+          || (member.getEnclosingElement().getKind() != ElementKind.INTERFACE)
+          || member.getModifiers().contains(Modifier.STATIC)) {
+        continue;
+      }
+      ExecutableElement method = (ExecutableElement) member;
+      // The types of the methods of generic superinterfaces are resolved with the type arguments
+      // of the annotated interface.
+      ExecutableType methodType = (ExecutableType) processingEnv.getTypeUtils()
+          .asMemberOf((DeclaredType) interfaceElement.asType(), method);
+      if (!signatures.add(getSignature(method, methodType))) {
+        continue;
+      }
+      Propagated annotation = method.getAnnotation(Propagated.class);
+      if (annotation == null) {
+        annotation = interfaceAnnotation;
+      }
+      generateMethod(sb, method, methodType, annotation);
+    }
+    sb.append("}\n");
+
+    String qualifiedName = packageElement.isUnnamed() ? simpleName
+        : packageElement.getQualifiedName() + "." + simpleName;
+    try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, interfaceElement)
+        .openWriter()) {
+      writer.write(sb.toString());
+    }
+  }
+
+  private void generateMethod(final StringBuilder sb, final ExecutableElement method,
+      final ExecutableType methodType, final Propagated annotation) {
+    boolean voidMethod = methodType.getReturnType().getKind() == TypeKind.VOID;
+    sb.append("\n  @Override\n  public ");
+    if (!method.getTypeParameters().isEmpty()) {
+      appendTypeParameters(sb, method.getTypeParameters(), true);
+      sb.append(' ');
+    }
+    sb.append(methodType.getReturnType()).append(' ').append(method.getSimpleName()).append('(');
+    appendParameters(sb, method, methodType);
+    sb.append(") {\n");
+
+    String delegateCall = createDelegateCall(method);
+    if (annotation == null) {
+      sb.append(voidMethod ? "    " : "    return ").append(delegateCall).append(";\n");
+    } else {
+      String propagatorCall = "this.propagator." + annotation.value().getModeName();
+      if (voidMethod) {
+        sb.append("    ").append(propagatorCall).append("(() -> {\n      ").append(delegateCall)
+            .append(";\n      return null;\n    });\n");
+      } else {
+        sb.append("    return ").append(propagatorCall).append("(() -> ").append(delegateCall)
+            .append(");\n");
+      }
+    }
+    sb.append("  }\n");
+  }
+
+  private String getSignature(final ExecutableElement method, final ExecutableType methodType) {
+    StringBuilder sb = new StringBuilder(method.getSimpleName()).append('(');
+    for (TypeMirror parameterType : methodType.getParameterTypes()) {
+      sb.append(processingEnv.getTypeUtils().erasure(parameterType)).append(',');
+    }
+    return sb.append(')').toString();
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  private boolean isCheckedException(final TypeMirror type) {
+    TypeMirror runtimeException = processingEnv.getElementUtils()
+        .getTypeElement(RuntimeException.class.getName()).asType();
+    TypeMirror error = processingEnv.getElementUtils().getTypeElement(Error.class.getName())
+        .asType();
+    return !processingEnv.getTypeUtils().isAssignable(type, runtimeException)
+        && !processingEnv.getTypeUtils().isAssignable(type, error);
+  }
+
+  @Override
+  public boolean process(final Set<? extends TypeElement> annotations,
+      final RoundEnvironment roundEnv) {
+    Set<TypeElement> interfaceElements = new LinkedHashSet<TypeElement>();
+    for (Element element : roundEnv.getElementsAnnotatedWith(Propagated.class)) {
+      Element interfaceElement =
+          (element.getKind() == ElementKind.METHOD) ? element.getEnclosingElement() : element;
+      if (interfaceElement.getKind() != ElementKind.INTERFACE) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+            "@Propagated is supported only on interfaces and their methods", element);
+      } else if (validate((TypeElement) interfaceElement)) {
+        interfaceElements.add((TypeElement) interfaceElement);
+      }
+    }
+    for (TypeElement interfaceElement : interfaceElements) {
+      try {
+        generate(interfaceElement);
+      } catch (IOException e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+            "Cannot generate propagating class: " + e.getMessage(), interfaceElement);
+      }
+    }
+    return true;
+  }
+
+  private boolean validate(final TypeElement interfaceElement) {
+    boolean valid = true;
+    boolean interfaceAnnotated = interfaceElement.getAnnotation(Propagated.class) != null;
+    for (Element member : processingEnv.getElementUtils().getAllMembers(interfaceElement)) {
+      if ((member.getKind() != ElementKind.METHOD)
+          || (member.getEnclosingElement().getKind() != ElementKind.INTERFACE)
+          || member.getModifiers().contains(Modifier.STATIC)
+          || (!interfaceAnnotated && (member.getAnnotation(Propagated.class) == null))) {
+        continue;
+      }
+      for (TypeMirror thrownType : ((ExecutableElement) member).getThrownTypes()) {
+        if (isCheckedException(thrownType)) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+              "Methods with @Propagated must not declare checked exceptions: " + thrownType,
+              member);
+          valid = false;
+        }
+      }
+    }
+    return valid;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.AdaptiveTransactionTimeouts;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.LatencySketch;
+import org.everit.transaction.propagator.jta.OperationInvoker;
+import org.everit.transaction.propagator.jta.OperationPolicy;
+import org.everit.transaction.propagator.jta.OperationPolicyRegistry;
+import org.everit.transaction.propagator.jta.PropagationMode;
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveTransactionTimeoutsTest {
+
+  @Test
+  public void testLatencySketchQuantiles() {
+    LatencySketch sketch = new LatencySketch();
+    Assert.assertEquals(-1, sketch.getQuantile(0.5));
+    for (int i = 1; i <= 100000; i++) {
+      sketch.record(i);
+    }
+    Assert.assertEquals(100000, sketch.getCount());
+    long p99 = sketch.getQuantile(0.99);
+    Assert.assertTrue("p99: " + p99, (p99 >= 99000) && (p99 <= (99000 + (99000 / 16))));
+    long p50 = sketch.getQuantile(0.5);
+    Assert.assertTrue("p50: " + p50, (p50 >= 50000) && (p50 <= (50000 + (50000 / 16))));
+    Assert.assertTrue(sketch.getQuantile(1) >= 100000);
+  }
+
+  @Test
+  public void testLatencySketchDecay() {
+    LatencySketch sketch = new LatencySketch(1000);
+    for (int i = 0; i < 999; i++) {
+      sketch.record(1);
+    }
+    Assert.assertEquals(999, sketch.getCount());
+    sketch.record(1);
+    Assert.assertEquals(500, sketch.getCount());
+  }
+
+  @Test
+  public void testTimeoutFollowsLatency() {
+    JTATransactionPropagator transactionPropagator;
+    try {
+      transactionPropagator = new JTATransactionPropagator(new GeronimoTransactionManager());
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    AdaptiveTransactionTimeouts adaptiveTimeouts = new AdaptiveTransactionTimeouts(3, 2, 60, 10);
+    OperationPolicyRegistry registry = new OperationPolicyRegistry(transactionPropagator,
+        new OperationPolicy(PropagationMode.REQUIRED, 0, 0, false), adaptiveTimeouts);
+    registry.register("fixed", new OperationPolicy(PropagationMode.REQUIRED, 10, 0, false));
+
+    OperationInvoker adaptiveInvoker = registry.getInvoker("adaptive");
+    OperationInvoker fixedInvoker = registry.getInvoker("fixed");
+    Assert.assertEquals(60, adaptiveTimeouts.getTimeoutSeconds("adaptive"));
+    for (int i = 0; i < 10; i++) {
+      adaptiveInvoker.invoke(() -> 1);
+      fixedInvoker.invoke(() -> 1);
+    }
+    Assert.assertEquals(2, adaptiveTimeouts.getTimeoutSeconds("adaptive"));
+    Assert.assertTrue(adaptiveTimeouts.getLatencyQuantileNanos("adaptive", 0.99) > 0);
+    Assert.assertEquals(-1, adaptiveTimeouts.getLatencyQuantileNanos("fixed", 0.99));
+  }
+
+  @Test
+  public void testTimeoutGrowsWhenTransactionsTimeOut() {
+    TransactionManager transactionManager;
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    JTATransactionPropagator transactionPropagator =
+        new JTATransactionPropagator(transactionManager);
+    AdaptiveTransactionTimeouts adaptiveTimeouts = new AdaptiveTransactionTimeouts(3, 1, 60, 10);
+    OperationPolicyRegistry registry = new OperationPolicyRegistry(transactionPropagator,
+        new OperationPolicy(PropagationMode.REQUIRED, 0, 0, false), adaptiveTimeouts);
+    OperationInvoker invoker = registry.getInvoker("adaptive");
+    for (int i = 0; i < 10; i++) {
+      invoker.invoke(() -> 1);
+    }
+    Assert.assertEquals(1, adaptiveTimeouts.getTimeoutSeconds("adaptive"));
+
+    // The latency rises above the learned timeout, so the transaction manager marks every
+    // transaction for rollback. Marking them directly keeps the test fast.
+    for (int i = 10; i < 64; i++) {
+      try {
+        invoker.invoke(() -> {
+          try {
+            transactionManager.setRollbackOnly();
+          } catch (SystemException e) {
+            throw new RuntimeException(e);
+          }
+          return 1;
+        });
+        Assert.fail("Rollback exception should have been thrown");
+      } catch (UncheckedRollbackException e) {
+        Assert.assertNotNull(e.getCause());
+      }
+    }
+    Assert.assertTrue(adaptiveTimeouts.getLatencyQuantileNanos("adaptive", 0.99) >= 1000000000L);
+    Assert.assertTrue(adaptiveTimeouts.getTimeoutSeconds("adaptive") >= 3);
+  }
+
+  @Test
+  public void testTimeoutIgnoresCallbackFailures() {
+    JTATransactionPropagator transactionPropagator;
+    try {
+      transactionPropagator = new JTATransactionPropagator(new GeronimoTransactionManager());
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    AdaptiveTransactionTimeouts adaptiveTimeouts = new AdaptiveTransactionTimeouts(3, 1, 60, 10);
+    OperationPolicyRegistry registry = new OperationPolicyRegistry(transactionPropagator,
+        new OperationPolicy(PropagationMode.REQUIRED, 0, 0, false), adaptiveTimeouts);
+    OperationInvoker invoker = registry.getInvoker("adaptive");
+    for (int i = 0; i < 10; i++) {
+      invoker.invoke(() -> 1);
+    }
+    Assert.assertEquals(1, adaptiveTimeouts.getTimeoutSeconds("adaptive"));
+
+    // Every second call fails for business reasons, which does not tell anything about a timeout
+    for (int i = 10; i < 128; i++) {
+      if ((i % 2) == 0) {
+        invoker.invoke(() -> 1);
+      } else {
+        try {
+          invoker.invoke(() -> {
+            throw new NumberFormatException();
+          });
+          Assert.fail("Exception should have been thrown");
+        } catch (NumberFormatException e) {
+          Assert.assertEquals(0, e.getSuppressed().length);
+        }
+      }
+    }
+    Assert.assertTrue(adaptiveTimeouts.getLatencyQuantileNanos("adaptive", 0.99) < 1000000000L);
+    Assert.assertEquals(1, adaptiveTimeouts.getTimeoutSeconds("adaptive"));
+  }
+}
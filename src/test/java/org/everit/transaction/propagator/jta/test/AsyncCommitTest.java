@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.AsyncCommitExecutor;
+import org.everit.transaction.propagator.jta.FailureOutcome;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.PhaseProfiler;
+import org.everit.transaction.propagator.jta.TransactionEventBus;
+import org.everit.transaction.propagator.jta.TransactionEventSubscription;
+import org.everit.transaction.propagator.jta.TransactionEventType;
+import org.everit.transaction.propagator.jta.TransactionPhase;
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.everit.transaction.unchecked.UncheckedSystemException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncCommitTest {
+
+  private AsyncCommitExecutor commitExecutor;
+
+  private TransactionManager transactionManager;
+
+  private JTATransactionPropagator transactionPropagator;
+
+  @After
+  public void after() throws InterruptedException {
+    commitExecutor.shutdown();
+    Assert.assertTrue(commitExecutor.awaitTermination(1, TimeUnit.MINUTES));
+  }
+
+  @Before
+  public void before() {
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+    commitExecutor = new AsyncCommitExecutor(1, 16);
+    transactionPropagator.setCommitExecutor(commitExecutor);
+  }
+
+  private void enlistResource(final XAResource resource) {
+    try {
+      transactionManager.getTransaction().enlistResource(resource);
+    } catch (IllegalStateException | RollbackException | SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int getStatus() {
+    try {
+      return transactionManager.getStatus();
+    } catch (SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testCommitFailureCompletesExceptionally()
+      throws InterruptedException, TimeoutException {
+    CompletableFuture<Integer> future = transactionPropagator.requiredWithAsyncCommit(() -> {
+      try {
+        transactionManager.setRollbackOnly();
+      } catch (IllegalStateException | SystemException e) {
+        throw new RuntimeException(e);
+      }
+      return 1;
+    }).toCompletableFuture();
+    try {
+      future.get(1, TimeUnit.MINUTES);
+      Assert.fail("Exception should have been thrown");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(UncheckedRollbackException.class, e.getCause().getClass());
+    }
+  }
+
+  @Test
+  public void testEventsAndProfileOfAsyncCommit() {
+    TransactionEventBus eventBus = new TransactionEventBus(16);
+    TransactionEventSubscription subscription = eventBus.subscribe();
+    transactionPropagator.setEventBus(eventBus);
+    PhaseProfiler phaseProfiler = new PhaseProfiler(1);
+    transactionPropagator.setPhaseProfiler(phaseProfiler);
+
+    Assert.assertEquals(Integer.valueOf(1),
+        transactionPropagator.requiredWithAsyncCommit(() -> 1).toCompletableFuture().join());
+
+    List<String> events = new ArrayList<String>();
+    subscription.poll((threadId, type, mode, timestampNanos) -> events
+        .add(type + " " + mode.getModeName()));
+    Collections.sort(events);
+    Assert.assertEquals(Arrays.asList(TransactionEventType.BEGIN + " required",
+        TransactionEventType.COMMIT + " required", TransactionEventType.RESUME + " required",
+        TransactionEventType.SUSPEND + " required"), events);
+    String callSite = AsyncCommitTest.class.getName() + ".testEventsAndProfileOfAsyncCommit";
+    Assert.assertEquals(1, phaseProfiler.getSampleCount(callSite));
+    Assert.assertTrue(phaseProfiler.getPhaseNanos(callSite, TransactionPhase.SUSPEND) > 0);
+  }
+
+  @Test
+  public void testFailedTransactionLookupRollsBack() {
+    LookupFailingTransactionManager lookupFailingTransactionManager =
+        new LookupFailingTransactionManager(transactionManager);
+    JTATransactionPropagator lookupFailingPropagator =
+        new JTATransactionPropagator(lookupFailingTransactionManager);
+    lookupFailingPropagator.setCommitExecutor(commitExecutor);
+    lookupFailingTransactionManager.setLookupFailing(true);
+    try {
+      lookupFailingPropagator.requiredWithAsyncCommit(() -> {
+        Assert.fail("Callback should not have been called");
+        return null;
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (UncheckedSystemException e) {
+      Assert.assertEquals(0, e.getSuppressed().length);
+    }
+    Assert.assertEquals(Status.STATUS_NO_TRANSACTION, getStatus());
+  }
+
+  @Test
+  public void testRequiredJoinsOngoingTransaction() {
+    final RememberLastCallXAResource resource = new RememberLastCallXAResource();
+    transactionPropagator.required(() -> {
+      enlistResource(resource);
+      CompletableFuture<Integer> future =
+          transactionPropagator.requiredWithAsyncCommit(() -> 1).toCompletableFuture();
+      Assert.assertTrue(future.isDone());
+      Assert.assertEquals(XAResourceStatus.STATUS_START, resource.getStatus());
+    });
+    Assert.assertEquals(Status.STATUS_COMMITTED, resource.getStatus());
+  }
+
+  @Test
+  public void testRequiredWithAsyncCommit()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    final RememberLastCallXAResource resource = new RememberLastCallXAResource();
+    CompletableFuture<Integer> future = transactionPropagator.requiredWithAsyncCommit(() -> {
+      enlistResource(resource);
+      return 1;
+    }).toCompletableFuture();
+    Assert.assertEquals(Status.STATUS_NO_TRANSACTION, getStatus());
+    Assert.assertEquals(Integer.valueOf(1), future.get(1, TimeUnit.MINUTES));
+    Assert.assertEquals(Status.STATUS_COMMITTED, resource.getStatus());
+  }
+
+  @Test
+  public void testRequiresNewWithAsyncCommitResumesOuterTransaction() {
+    final RememberLastCallXAResource outerResource = new RememberLastCallXAResource();
+    final RememberLastCallXAResource innerResource = new RememberLastCallXAResource();
+    transactionPropagator.required(() -> {
+      enlistResource(outerResource);
+      CompletableFuture<Integer> future = transactionPropagator.requiresNewWithAsyncCommit(() -> {
+        enlistResource(innerResource);
+        return 1;
+      }).toCompletableFuture();
+      Assert.assertEquals(Status.STATUS_ACTIVE, getStatus());
+      Assert.assertEquals(Integer.valueOf(1), future.join());
+      Assert.assertEquals(Status.STATUS_COMMITTED, innerResource.getStatus());
+      Assert.assertEquals(XAResourceStatus.STATUS_START, outerResource.getStatus());
+    });
+    Assert.assertEquals(Status.STATUS_COMMITTED, outerResource.getStatus());
+  }
+
+  @Test
+  public void testResumeFailureRollsBack() throws InterruptedException, TimeoutException {
+    List<FailureOutcome> journaledOutcomes = new ArrayList<FailureOutcome>();
+    transactionPropagator.setFailureJournal(
+        (mode, outcome, transaction, throwable) -> journaledOutcomes.add(outcome));
+    // The thread of the executor is associated with another transaction, so the resume fails.
+    transactionPropagator.setCommitExecutor((command) -> {
+      try {
+        transactionManager.begin();
+      } catch (NotSupportedException | SystemException e) {
+        throw new RuntimeException(e);
+      }
+      try {
+        command.run();
+      } finally {
+        try {
+          transactionManager.rollback();
+        } catch (SystemException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    final RememberLastCallXAResource resource = new RememberLastCallXAResource();
+    CompletableFuture<Integer> future = transactionPropagator.requiredWithAsyncCommit(() -> {
+      enlistResource(resource);
+      return 1;
+    }).toCompletableFuture();
+    try {
+      future.get(1, TimeUnit.MINUTES);
+      Assert.fail("Exception should have been thrown");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(IllegalStateException.class, e.getCause().getClass());
+    }
+    Assert.assertEquals(Status.STATUS_ROLLEDBACK, resource.getStatus());
+    Assert.assertEquals(Collections.singletonList(FailureOutcome.RESUME_FAILED),
+        journaledOutcomes);
+  }
+
+  @Test
+  public void testRollbackWhenCallbackFails() {
+    final RememberLastCallXAResource resource = new RememberLastCallXAResource();
+    try {
+      transactionPropagator.requiredWithAsyncCommit(() -> {
+        enlistResource(resource);
+        throw new NumberFormatException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(Status.STATUS_ROLLEDBACK, resource.getStatus());
+      Assert.assertEquals(Status.STATUS_NO_TRANSACTION, getStatus());
+    }
+  }
+}
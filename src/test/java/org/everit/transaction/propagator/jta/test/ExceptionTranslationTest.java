@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.ExceptionTranslation;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.OperationInvoker;
+import org.everit.transaction.propagator.jta.OperationPolicy;
+import org.everit.transaction.propagator.jta.OperationPolicyRegistry;
+import org.everit.transaction.propagator.jta.PropagationMode;
+import org.everit.transaction.unchecked.UncheckedHeuristicMixedException;
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.everit.transaction.unchecked.UncheckedSystemException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExceptionTranslationTest {
+
+  /**
+   * Application specific exception that has no entry in the translation table.
+   */
+  private static class DeadlockVictimException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    DeadlockVictimException(final Throwable cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * Wrapper of all unchecked exceptions.
+   */
+  private static class WrapperException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    WrapperException(final Throwable cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * Vendor specific subclass of a JTA exception.
+   */
+  private static class VendorSystemException extends SystemException {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Vendor specific subclass that is registered with a translator of its own.
+   */
+  private static class VendorDeadlockException extends VendorSystemException {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static JTATransactionPropagator createPropagator() {
+    try {
+      return new JTATransactionPropagator(new GeronimoTransactionManager());
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testClassificationSurvivesLaterTranslations() {
+    ExceptionTranslation exceptionTranslation = new ExceptionTranslation();
+    exceptionTranslation.register(IllegalArgumentException.class, DeadlockVictimException::new,
+        true);
+
+    RuntimeException deadlock = exceptionTranslation.translate(new IllegalArgumentException());
+    // A translation in between, e.g. during the rollback or in a synchronization
+    RuntimeException systemFailure = exceptionTranslation.translate(new SystemException());
+    Assert.assertTrue(exceptionTranslation.isRetryable(deadlock));
+    Assert.assertFalse(exceptionTranslation.isRetryable(systemFailure));
+    Assert.assertSame(deadlock, exceptionTranslation.translate(deadlock));
+  }
+
+  @Test
+  public void testCustomTranslatorInPropagator() {
+    JTATransactionPropagator transactionPropagator = createPropagator();
+    ExceptionTranslation exceptionTranslation = new ExceptionTranslation();
+    exceptionTranslation.register(IllegalArgumentException.class,
+        (e) -> new ConcurrentModificationException(e), true);
+    transactionPropagator.setExceptionTranslation(exceptionTranslation);
+
+    IllegalArgumentException original = new IllegalArgumentException();
+    try {
+      transactionPropagator.required(() -> {
+        throw original;
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (ConcurrentModificationException e) {
+      Assert.assertSame(original, e.getCause());
+      Assert.assertTrue(exceptionTranslation.isRetryable(e));
+    }
+  }
+
+  @Test
+  public void testDefaultTranslation() {
+    ExceptionTranslation exceptionTranslation = new ExceptionTranslation();
+
+    RuntimeException rollback = exceptionTranslation.translate(new RollbackException());
+    Assert.assertEquals(UncheckedRollbackException.class, rollback.getClass());
+    Assert.assertTrue(exceptionTranslation.isRetryable(rollback));
+
+    RuntimeException heuristicMixed =
+        exceptionTranslation.translate(new HeuristicMixedException());
+    Assert.assertEquals(UncheckedHeuristicMixedException.class, heuristicMixed.getClass());
+    Assert.assertFalse(exceptionTranslation.isRetryable(heuristicMixed));
+
+    IllegalStateException unchecked = new IllegalStateException();
+    Assert.assertSame(unchecked, exceptionTranslation.translate(unchecked));
+    Assert.assertFalse(exceptionTranslation.isRetryable(unchecked));
+
+    IOException checked = new IOException();
+    RuntimeException wrapped = exceptionTranslation.translate(checked);
+    Assert.assertEquals(RuntimeException.class, wrapped.getClass());
+    Assert.assertSame(checked, wrapped.getCause());
+  }
+
+  @Test
+  public void testNearestSuperclassIsUsed() {
+    ExceptionTranslation exceptionTranslation = new ExceptionTranslation();
+    Assert.assertEquals(UncheckedSystemException.class,
+        exceptionTranslation.translate(new VendorSystemException()).getClass());
+
+    exceptionTranslation.register(VendorDeadlockException.class,
+        DeadlockVictimException::new, true);
+    exceptionTranslation.register(UncheckedIOException.class, (e) -> e, true);
+
+    Assert.assertEquals(UncheckedSystemException.class,
+        exceptionTranslation.translate(new VendorSystemException()).getClass());
+    RuntimeException deadlock = exceptionTranslation.translate(new VendorDeadlockException());
+    Assert.assertEquals(DeadlockVictimException.class, deadlock.getClass());
+    Assert.assertTrue(exceptionTranslation.isRetryable(deadlock));
+    Assert.assertTrue(exceptionTranslation.isRetryable(new UncheckedIOException(
+        new IOException())));
+  }
+
+  @Test
+  public void testRetryOfTranslatedException() {
+    JTATransactionPropagator transactionPropagator = createPropagator();
+    ExceptionTranslation exceptionTranslation = new ExceptionTranslation();
+    exceptionTranslation.register(IllegalArgumentException.class, DeadlockVictimException::new,
+        true);
+    transactionPropagator.setExceptionTranslation(exceptionTranslation);
+    OperationPolicyRegistry registry = new OperationPolicyRegistry(transactionPropagator,
+        new OperationPolicy(PropagationMode.REQUIRED, 0, 1, false));
+    OperationInvoker invoker = registry.getInvoker("retried");
+
+    AtomicInteger callCount = new AtomicInteger();
+    int result = invoker.invoke(() -> {
+      if (callCount.incrementAndGet() == 1) {
+        throw new IllegalArgumentException();
+      }
+      return callCount.get();
+    });
+    Assert.assertEquals(2, result);
+  }
+
+  @Test
+  public void testTranslatedOnceInNestedCalls() {
+    JTATransactionPropagator transactionPropagator = createPropagator();
+    ExceptionTranslation exceptionTranslation = new ExceptionTranslation();
+    exceptionTranslation.register(RuntimeException.class, WrapperException::new, false);
+    transactionPropagator.setExceptionTranslation(exceptionTranslation);
+
+    IllegalArgumentException original = new IllegalArgumentException();
+    try {
+      transactionPropagator.required(() -> transactionPropagator.requiresNew(
+          () -> transactionPropagator.required(() -> {
+            throw original;
+          })));
+      Assert.fail("Exception should have been thrown");
+    } catch (WrapperException e) {
+      Assert.assertSame(original, e.getCause());
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * {@link XAResource} that injects latency and failures into the phases of the two phase commit
+ * protocol, so the rollback, suppression and resume paths of the propagator can be tested and
+ * benchmarked with slow or failing resource managers. The behavior of every phase can be
+ * configured separately and the calls of every phase are counted.
+ */
+public class FaultInjectingXAResource implements XAResource {
+
+  /**
+   * The phases where faults can be injected.
+   */
+  public enum Phase {
+
+    COMMIT,
+
+    END,
+
+    PREPARE,
+
+    ROLLBACK,
+
+    START
+  }
+
+  /**
+   * The configured behavior of a phase.
+   */
+  private static final class PhaseBehavior {
+
+    volatile int errorCode;
+
+    volatile double failureProbability;
+
+    volatile long latencyMillis;
+  }
+
+  private final Map<Phase, PhaseBehavior> behaviors =
+      new EnumMap<Phase, PhaseBehavior>(Phase.class);
+
+  private final Map<Phase, AtomicInteger> callCounts =
+      new EnumMap<Phase, AtomicInteger>(Phase.class);
+
+  private final Map<Phase, AtomicInteger> failureCounts =
+      new EnumMap<Phase, AtomicInteger>(Phase.class);
+
+  private final Random random;
+
+  private volatile boolean readOnlyVote;
+
+  /**
+   * Constructor.
+   *
+   * @param seed
+   *          The seed of the random generator that decides whether a call fails, so that a failing
+   *          run can be repeated.
+   */
+  public FaultInjectingXAResource(final long seed) {
+    random = new Random(seed);
+    for (Phase phase : Phase.values()) {
+      behaviors.put(phase, new PhaseBehavior());
+      callCounts.put(phase, new AtomicInteger());
+      failureCounts.put(phase, new AtomicInteger());
+    }
+  }
+
+  private void call(final Phase phase) throws XAException {
+    callCounts.get(phase).incrementAndGet();
+    PhaseBehavior behavior = behaviors.get(phase);
+    long latencyMillis = behavior.latencyMillis;
+    if (latencyMillis > 0) {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new XAException(XAException.XAER_RMFAIL);
+      }
+    }
+    double failureProbability = behavior.failureProbability;
+    if ((failureProbability > 0) && (nextDouble() < failureProbability)) {
+      failureCounts.get(phase).incrementAndGet();
+      throw new XAException(behavior.errorCode);
+    }
+  }
+
+  @Override
+  public void commit(final Xid xid, final boolean onePhase) throws XAException {
+    call(Phase.COMMIT);
+  }
+
+  @Override
+  public void end(final Xid xid, final int flags) throws XAException {
+    call(Phase.END);
+  }
+
+  @Override
+  public void forget(final Xid xid) throws XAException {
+    // Heuristic outcomes are not simulated, so there is nothing to forget
+  }
+
+  public int getCallCount(final Phase phase) {
+    return callCounts.get(phase).get();
+  }
+
+  public int getFailureCount(final Phase phase) {
+    return failureCounts.get(phase).get();
+  }
+
+  @Override
+  public int getTransactionTimeout() throws XAException {
+    return 0;
+  }
+
+  @Override
+  public boolean isSameRM(final XAResource xares) throws XAException {
+    return xares == this;
+  }
+
+  private double nextDouble() {
+    synchronized (random) {
+      return random.nextDouble();
+    }
+  }
+
+  @Override
+  public int prepare(final Xid xid) throws XAException {
+    call(Phase.PREPARE);
+    return readOnlyVote ? XA_RDONLY : XA_OK;
+  }
+
+  @Override
+  public Xid[] recover(final int flag) throws XAException {
+    return new Xid[0];
+  }
+
+  @Override
+  public void rollback(final Xid xid) throws XAException {
+    call(Phase.ROLLBACK);
+  }
+
+  /**
+   * Makes the calls of a phase fail.
+   *
+   * @param phase
+   *          The phase.
+   * @param failureProbability
+   *          The probability of a call failing between zero and one.
+   * @param errorCode
+   *          The error code of the thrown {@link XAException}, e.g.
+   *          {@link XAException#XA_RBROLLBACK} or {@link XAException#XAER_RMFAIL}.
+   */
+  public void setFailure(final Phase phase, final double failureProbability,
+      final int errorCode) {
+    PhaseBehavior behavior = behaviors.get(phase);
+    behavior.errorCode = errorCode;
+    behavior.failureProbability = failureProbability;
+  }
+
+  /**
+   * Sets the time that every call of a phase takes before it returns or fails.
+   *
+   * @param phase
+   *          The phase.
+   * @param latencyMillis
+   *          The latency in milliseconds.
+   */
+  public void setLatency(final Phase phase, final long latencyMillis) {
+    behaviors.get(phase).latencyMillis = latencyMillis;
+  }
+
+  /**
+   * Sets whether the resource votes read-only in the prepare phase, so the transaction manager
+   * does not have to commit it.
+   *
+   * @param readOnlyVote
+   *          <code>true</code> if prepare returns {@link XAResource#XA_RDONLY}.
+   */
+  public void setReadOnlyVote(final boolean readOnlyVote) {
+    this.readOnlyVote = readOnlyVote;
+  }
+
+  @Override
+  public boolean setTransactionTimeout(final int seconds) throws XAException {
+    return true;
+  }
+
+  @Override
+  public void start(final Xid xid, final int flags) throws XAException {
+    call(Phase.START);
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.PhaseProfiler;
+import org.everit.transaction.propagator.jta.TransactionPhase;
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FaultInjectingXAResourceTest {
+
+  private static final long SEED = 20161018L;
+
+  private TransactionManager transactionManager;
+
+  private JTATransactionPropagator transactionPropagator;
+
+  @Before
+  public void before() {
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+  }
+
+  private void enlistResources(final FaultInjectingXAResource... resources) {
+    try {
+      Transaction transaction = transactionManager.getTransaction();
+      for (FaultInjectingXAResource resource : resources) {
+        transaction.enlistResource(resource);
+      }
+    } catch (IllegalStateException | RollbackException | SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Transaction getTransaction() {
+    try {
+      return transactionManager.getTransaction();
+    } catch (SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void requiresNewWithResources(final FaultInjectingXAResource... resources) {
+    transactionPropagator.requiresNew(() -> {
+      enlistResources(resources);
+      return null;
+    });
+  }
+
+  @Test
+  public void testCallbackFailureWithFailingRollback() {
+    FaultInjectingXAResource resource = new FaultInjectingXAResource(SEED);
+    resource.setFailure(FaultInjectingXAResource.Phase.ROLLBACK, 1, XAException.XAER_RMERR);
+    try {
+      transactionPropagator.required(() -> {
+        enlistResources(resource);
+        throw new NumberFormatException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(1, resource.getFailureCount(FaultInjectingXAResource.Phase.ROLLBACK));
+      Assert.assertEquals(1, e.getSuppressed().length);
+      Assert.assertTrue(e.getSuppressed()[0] instanceof SystemException);
+    }
+    Assert.assertNull(getTransaction());
+  }
+
+  @Test
+  public void testFailingPrepareRollsBackOtherResources() {
+    FaultInjectingXAResource failingResource = new FaultInjectingXAResource(SEED);
+    failingResource.setFailure(FaultInjectingXAResource.Phase.PREPARE, 1,
+        XAException.XA_RBROLLBACK);
+    FaultInjectingXAResource otherResource = new FaultInjectingXAResource(SEED);
+    try {
+      transactionPropagator.required(() -> {
+        enlistResources(failingResource, otherResource);
+        return null;
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (UncheckedRollbackException e) {
+      Assert.assertEquals(0, otherResource.getCallCount(FaultInjectingXAResource.Phase.COMMIT));
+      Assert.assertEquals(1,
+          otherResource.getCallCount(FaultInjectingXAResource.Phase.ROLLBACK));
+    }
+  }
+
+  @Test
+  public void testFailingStartPreventsEnlistment() {
+    FaultInjectingXAResource resource = new FaultInjectingXAResource(SEED);
+    resource.setFailure(FaultInjectingXAResource.Phase.START, 1, XAException.XAER_RMFAIL);
+    try {
+      transactionPropagator.required(() -> {
+        enlistResources(resource);
+        return null;
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (RuntimeException e) {
+      Assert.assertEquals(0, resource.getCallCount(FaultInjectingXAResource.Phase.COMMIT));
+    }
+    Assert.assertNull(getTransaction());
+  }
+
+  @Test
+  public void testFailureProbabilityIsRepeatable() {
+    FaultInjectingXAResource resource = new FaultInjectingXAResource(SEED);
+    resource.setFailure(FaultInjectingXAResource.Phase.COMMIT, 0.5, XAException.XA_HEURRB);
+    FaultInjectingXAResource sameResource = new FaultInjectingXAResource(SEED);
+    sameResource.setFailure(FaultInjectingXAResource.Phase.COMMIT, 0.5, XAException.XA_HEURRB);
+    for (int i = 0; i < 100; i++) {
+      boolean failed = false;
+      boolean sameFailed = false;
+      try {
+        resource.commit(null, true);
+      } catch (XAException e) {
+        Assert.assertEquals(XAException.XA_HEURRB, e.errorCode);
+        failed = true;
+      }
+      try {
+        sameResource.commit(null, true);
+      } catch (XAException e) {
+        sameFailed = true;
+      }
+      Assert.assertEquals(failed, sameFailed);
+    }
+    int failureCount = resource.getFailureCount(FaultInjectingXAResource.Phase.COMMIT);
+    Assert.assertTrue(String.valueOf(failureCount), (failureCount > 0) && (failureCount < 100));
+  }
+
+  @Test
+  public void testNotSupportedFailureRollsBackResumedTransaction() {
+    FaultInjectingXAResource resource = new FaultInjectingXAResource(SEED);
+    resource.setFailure(FaultInjectingXAResource.Phase.ROLLBACK, 1, XAException.XAER_RMERR);
+    try {
+      transactionPropagator.required(() -> {
+        enlistResources(resource);
+        Transaction outerTransaction = getTransaction();
+        try {
+          transactionPropagator.notSupported(() -> {
+            Assert.assertNull(getTransaction());
+            throw new NumberFormatException();
+          });
+          Assert.fail("Exception should have been thrown");
+        } catch (NumberFormatException e) {
+          // The outer transaction is resumed before the failure reaches the caller
+          Assert.assertSame(outerTransaction, getTransaction());
+          throw e;
+        }
+        return null;
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(1, resource.getCallCount(FaultInjectingXAResource.Phase.ROLLBACK));
+      Assert.assertEquals(1, e.getSuppressed().length);
+      Assert.assertTrue(e.getSuppressed()[0] instanceof SystemException);
+    }
+    Assert.assertNull(getTransaction());
+  }
+
+  @Test
+  public void testRequiresNewCommitFailureResumesOuterTransaction() {
+    FaultInjectingXAResource outerResource = new FaultInjectingXAResource(SEED);
+    FaultInjectingXAResource innerResource = new FaultInjectingXAResource(SEED);
+    innerResource.setFailure(FaultInjectingXAResource.Phase.PREPARE, 1,
+        XAException.XA_RBROLLBACK);
+    FaultInjectingXAResource otherInnerResource = new FaultInjectingXAResource(SEED);
+
+    transactionPropagator.required(() -> {
+      enlistResources(outerResource);
+      Transaction outerTransaction = getTransaction();
+      try {
+        requiresNewWithResources(innerResource, otherInnerResource);
+        Assert.fail("Exception should have been thrown");
+      } catch (UncheckedRollbackException e) {
+        Assert.assertSame(outerTransaction, getTransaction());
+        try {
+          Assert.assertEquals(Status.STATUS_ACTIVE, outerTransaction.getStatus());
+        } catch (SystemException e1) {
+          throw new RuntimeException(e1);
+        }
+      }
+      return null;
+    });
+
+    Assert.assertEquals(1,
+        otherInnerResource.getCallCount(FaultInjectingXAResource.Phase.ROLLBACK));
+    Assert.assertEquals(1, outerResource.getCallCount(FaultInjectingXAResource.Phase.COMMIT));
+    Assert.assertEquals(0, outerResource.getCallCount(FaultInjectingXAResource.Phase.ROLLBACK));
+    Assert.assertNull(getTransaction());
+  }
+
+  @Test
+  public void testRequiresNewSlowResourceResumesOuterTransaction() {
+    PhaseProfiler phaseProfiler = new PhaseProfiler(1);
+    transactionPropagator.setPhaseProfiler(phaseProfiler);
+    FaultInjectingXAResource outerResource = new FaultInjectingXAResource(SEED);
+    FaultInjectingXAResource slowResource = new FaultInjectingXAResource(SEED);
+    slowResource.setLatency(FaultInjectingXAResource.Phase.COMMIT, 20);
+
+    transactionPropagator.required(() -> {
+      enlistResources(outerResource);
+      Transaction outerTransaction = getTransaction();
+      requiresNewWithResources(slowResource);
+      Assert.assertSame(outerTransaction, getTransaction());
+      return null;
+    });
+
+    Assert.assertEquals(1, slowResource.getCallCount(FaultInjectingXAResource.Phase.COMMIT));
+    Assert.assertEquals(1, outerResource.getCallCount(FaultInjectingXAResource.Phase.COMMIT));
+    // The profile of the new transaction is recorded for the method that called requiresNew
+    String callSite = FaultInjectingXAResourceTest.class.getName() + ".requiresNewWithResources";
+    Assert.assertTrue(phaseProfiler.getPhaseNanos(callSite,
+        TransactionPhase.COMMIT) >= TimeUnit.MILLISECONDS.toNanos(20));
+  }
+
+  @Test
+  public void testSlowResourceAmplifiesCommitLatency() {
+    PhaseProfiler phaseProfiler = new PhaseProfiler(1);
+    transactionPropagator.setPhaseProfiler(phaseProfiler);
+    FaultInjectingXAResource slowResource = new FaultInjectingXAResource(SEED);
+    slowResource.setLatency(FaultInjectingXAResource.Phase.PREPARE, 20);
+    slowResource.setLatency(FaultInjectingXAResource.Phase.COMMIT, 20);
+    FaultInjectingXAResource readOnlyResource = new FaultInjectingXAResource(SEED);
+    readOnlyResource.setReadOnlyVote(true);
+
+    transactionPropagator.required(() -> {
+      enlistResources(slowResource, readOnlyResource);
+      return null;
+    });
+
+    Assert.assertEquals(1, readOnlyResource.getCallCount(FaultInjectingXAResource.Phase.PREPARE));
+    String callSite =
+        FaultInjectingXAResourceTest.class.getName() + ".testSlowResourceAmplifiesCommitLatency";
+    Assert.assertTrue(phaseProfiler.getPhaseNanos(callSite,
+        TransactionPhase.COMMIT) >= TimeUnit.MILLISECONDS.toNanos(40));
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * {@link TransactionManager} that delegates to another one, but whose
+ * {@link #getTransaction()} can be made to fail with a {@link SystemException}.
+ */
+public class LookupFailingTransactionManager implements TransactionManager {
+
+  private final TransactionManager delegate;
+
+  private volatile boolean lookupFailing;
+
+  public LookupFailingTransactionManager(final TransactionManager delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void begin() throws NotSupportedException, SystemException {
+    delegate.begin();
+  }
+
+  @Override
+  public void commit() throws RollbackException, HeuristicMixedException,
+      HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
+    delegate.commit();
+  }
+
+  @Override
+  public int getStatus() throws SystemException {
+    return delegate.getStatus();
+  }
+
+  @Override
+  public Transaction getTransaction() throws SystemException {
+    if (lookupFailing) {
+      throw new SystemException("Transaction lookup failed");
+    }
+    return delegate.getTransaction();
+  }
+
+  @Override
+  public void resume(final Transaction transaction)
+      throws InvalidTransactionException, IllegalStateException, SystemException {
+    delegate.resume(transaction);
+  }
+
+  @Override
+  public void rollback() throws IllegalStateException, SecurityException, SystemException {
+    delegate.rollback();
+  }
+
+  @Override
+  public void setRollbackOnly() throws IllegalStateException, SystemException {
+    delegate.setRollbackOnly();
+  }
+
+  public void setLookupFailing(final boolean lookupFailing) {
+    this.lookupFailing = lookupFailing;
+  }
+
+  @Override
+  public void setTransactionTimeout(final int seconds) throws SystemException {
+    delegate.setTransactionTimeout(seconds);
+  }
+
+  @Override
+  public Transaction suspend() throws SystemException {
+    return delegate.suspend();
+  }
+}
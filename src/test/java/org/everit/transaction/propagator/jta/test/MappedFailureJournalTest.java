@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.FailureJournalReader;
+import org.everit.transaction.propagator.jta.FailureJournalRecord;
+import org.everit.transaction.propagator.jta.FailureOutcome;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.MappedFailureJournal;
+import org.everit.transaction.propagator.jta.PropagationMode;
+import org.everit.transaction.unchecked.UncheckedSystemException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFailureJournalTest {
+
+  private File journalFile;
+
+  @After
+  public void after() {
+    if (!journalFile.delete()) {
+      journalFile.deleteOnExit();
+    }
+  }
+
+  @Before
+  public void before() throws IOException {
+    journalFile = File.createTempFile("failure-journal", ".bin");
+    if (!journalFile.delete()) {
+      throw new IOException("Cannot delete " + journalFile);
+    }
+  }
+
+  @Test
+  public void testFailedRollbackIsJournaled() throws IOException, XAException {
+    TransactionManager transactionManager = new GeronimoTransactionManager();
+    JTATransactionPropagator transactionPropagator =
+        new JTATransactionPropagator(transactionManager);
+    MappedFailureJournal journal = new MappedFailureJournal(journalFile, 16);
+    transactionPropagator.setFailureJournal(journal);
+    try {
+      transactionPropagator.requiresNew(() -> {
+        try {
+          transactionManager.commit();
+        } catch (Exception e) {
+          Assert.fail(e.getMessage());
+        }
+        throw new NumberFormatException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(1, e.getSuppressed().length);
+    }
+    journal.close();
+
+    List<FailureJournalRecord> records = FailureJournalReader.read(journalFile);
+    Assert.assertEquals(1, records.size());
+    FailureJournalRecord record = records.get(0);
+    Assert.assertEquals(PropagationMode.REQUIRES_NEW, record.getMode());
+    Assert.assertEquals(FailureOutcome.ROLLBACK_FAILED, record.getOutcome());
+    Assert.assertEquals(IllegalStateException.class.getName(), record.getExceptionClassName());
+    Assert.assertTrue(record.getTransactionId().length > 0);
+  }
+
+  @Test
+  public void testFailedTransactionLookupRollsBack() throws IOException, SystemException,
+      XAException {
+    TransactionManager delegate = new GeronimoTransactionManager();
+    LookupFailingTransactionManager transactionManager =
+        new LookupFailingTransactionManager(delegate);
+    JTATransactionPropagator transactionPropagator =
+        new JTATransactionPropagator(transactionManager);
+    MappedFailureJournal journal = new MappedFailureJournal(journalFile, 16);
+    transactionPropagator.setFailureJournal(journal);
+    transactionManager.setLookupFailing(true);
+    try {
+      transactionPropagator.required(() -> {
+        Assert.fail("Callback should not have been called");
+        return null;
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (UncheckedSystemException e) {
+      Assert.assertEquals(0, e.getSuppressed().length);
+    }
+    journal.close();
+
+    Assert.assertEquals(Status.STATUS_NO_TRANSACTION, delegate.getStatus());
+    Assert.assertTrue(FailureJournalReader.read(journalFile).isEmpty());
+  }
+
+  @Test
+  public void testRingOverwritesOldestRecordsAndSurvivesReopen() throws IOException {
+    MappedFailureJournal journal = new MappedFailureJournal(journalFile, 4);
+    for (int i = 0; i < 6; i++) {
+      journal.write(PropagationMode.REQUIRED, FailureOutcome.HEURISTIC_MIXED, null,
+          new IllegalStateException());
+    }
+    journal.close();
+
+    journal = new MappedFailureJournal(journalFile, 4);
+    journal.write(PropagationMode.REQUIRED, FailureOutcome.HEURISTIC_ROLLBACK, null,
+        new IllegalStateException());
+    journal.close();
+
+    List<FailureJournalRecord> records = FailureJournalReader.read(journalFile);
+    Assert.assertEquals(4, records.size());
+    Assert.assertEquals(4, records.get(0).getSequence());
+    Assert.assertEquals(7, records.get(3).getSequence());
+    Assert.assertEquals(FailureOutcome.HEURISTIC_ROLLBACK, records.get(3).getOutcome());
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.OperationInvoker;
+import org.everit.transaction.propagator.jta.OperationPolicy;
+import org.everit.transaction.propagator.jta.OperationPolicyRegistry;
+import org.everit.transaction.propagator.jta.PropagationMode;
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OperationPolicyRegistryTest {
+
+  private JTATransactionPropagator transactionPropagator;
+
+  private TransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+  }
+
+  private byte[] enlistAndGetTransactionId(final RememberLastCallXAResource resource) {
+    try {
+      Transaction transaction = transactionManager.getTransaction();
+      transaction.enlistResource(resource);
+    } catch (IllegalStateException | RollbackException | SystemException e) {
+      throw new RuntimeException(e);
+    }
+    return resource.getXid().getGlobalTransactionId();
+  }
+
+  private OperationPolicyRegistry newRegistry() {
+    return new OperationPolicyRegistry(transactionPropagator,
+        new OperationPolicy(PropagationMode.REQUIRED, 0, 0, false));
+  }
+
+  @Test
+  public void testInvalidConfigurationKeepsPolicies() {
+    OperationPolicyRegistry registry = newRegistry();
+    OperationInvoker invoker = registry.getInvoker("op");
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("op.mode", "requiresNew");
+    properties.put("other.timeout", "notANumber");
+    try {
+      registry.updated(properties);
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(PropagationMode.REQUIRED, invoker.getPolicy().getMode());
+    }
+  }
+
+  @Test
+  public void testMisspelledAttributeIsRejected() {
+    OperationPolicyRegistry registry = newRegistry();
+    OperationInvoker invoker = registry.getInvoker("op");
+    registry.register("registered", new OperationPolicy(PropagationMode.REQUIRED, 0, 0, true));
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("op.mode", "requiresNew");
+    properties.put("op.timout", 30);
+    try {
+      registry.updated(properties);
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(PropagationMode.REQUIRED, invoker.getPolicy().getMode());
+    }
+
+    properties.clear();
+    properties.put("registered.readonly", false);
+    try {
+      registry.updated(properties);
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(registry.getInvoker("registered").getPolicy().isReadOnly());
+    }
+  }
+
+  @Test
+  public void testReadOnlyHintEndsWithRollback() {
+    OperationPolicyRegistry registry = newRegistry();
+    registry.register("query", new OperationPolicy(PropagationMode.REQUIRED, 0, 0, true));
+    RememberLastCallXAResource resource = new RememberLastCallXAResource();
+    registry.getInvoker("query").invoke(() -> enlistAndGetTransactionId(resource));
+    Assert.assertEquals(Status.STATUS_ROLLEDBACK, resource.getStatus());
+  }
+
+  @Test
+  public void testReconfigureModeAtRuntime() {
+    OperationPolicyRegistry registry = newRegistry();
+    OperationInvoker invoker = registry.getInvoker("hotEndpoint");
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("service.pid", "test");
+    properties.put("hotEndpoint.mode", "requiresNew");
+    properties.put("hotEndpoint.timeout", 30);
+    registry.updated(properties);
+    Assert.assertEquals(PropagationMode.REQUIRES_NEW, invoker.getPolicy().getMode());
+    Assert.assertEquals(30, invoker.getPolicy().getTimeoutSeconds());
+
+    final RememberLastCallXAResource outerResource = new RememberLastCallXAResource();
+    final RememberLastCallXAResource innerResource = new RememberLastCallXAResource();
+    transactionPropagator.required(() -> {
+      byte[] outerId = enlistAndGetTransactionId(outerResource);
+      byte[] innerId = invoker.invoke(() -> enlistAndGetTransactionId(innerResource));
+      Assert.assertFalse(Arrays.equals(outerId, innerId));
+      Assert.assertEquals(Status.STATUS_COMMITTED, innerResource.getStatus());
+    });
+
+    registry.updated(null);
+    Assert.assertEquals(PropagationMode.REQUIRED, invoker.getPolicy().getMode());
+    transactionPropagator.required(() -> {
+      byte[] outerId = enlistAndGetTransactionId(outerResource);
+      byte[] innerId = invoker.invoke(() -> enlistAndGetTransactionId(innerResource));
+      Assert.assertTrue(Arrays.equals(outerId, innerId));
+    });
+  }
+
+  @Test
+  public void testRetryOfReadOnlyPolicy() {
+    OperationPolicyRegistry registry = newRegistry();
+    registry.register("query", new OperationPolicy(PropagationMode.REQUIRED, 0, 1, true));
+    OperationInvoker invoker = registry.getInvoker("query");
+    AtomicInteger callCount = new AtomicInteger();
+    int result = invoker.invoke(() -> {
+      if (callCount.incrementAndGet() == 1) {
+        throw new UncheckedRollbackException(new RollbackException());
+      }
+      return callCount.get();
+    });
+    Assert.assertEquals(2, result);
+  }
+
+  @Test
+  public void testRetryOnRollback() {
+    OperationPolicyRegistry registry = newRegistry();
+    registry.register("retried", new OperationPolicy(PropagationMode.REQUIRED, 0, 1, false));
+    OperationInvoker invoker = registry.getInvoker("retried");
+    AtomicInteger callCount = new AtomicInteger();
+    int result = invoker.invoke(() -> {
+      if (callCount.incrementAndGet() == 1) {
+        try {
+          transactionManager.setRollbackOnly();
+        } catch (IllegalStateException | SystemException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return callCount.get();
+    });
+    Assert.assertEquals(2, result);
+
+    callCount.set(0);
+    try {
+      invoker.invoke(() -> {
+        callCount.incrementAndGet();
+        try {
+          transactionManager.setRollbackOnly();
+        } catch (IllegalStateException | SystemException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (UncheckedRollbackException e) {
+      Assert.assertEquals(2, callCount.get());
+    }
+  }
+}
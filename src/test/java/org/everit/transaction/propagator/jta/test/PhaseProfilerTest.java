@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.PhaseProfiler;
+import org.everit.transaction.propagator.jta.TransactionPhase;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PhaseProfilerTest {
+
+  private static final String CALL_SITE_PREFIX = PhaseProfilerTest.class.getName() + ".";
+
+  private PhaseProfiler phaseProfiler;
+
+  private JTATransactionPropagator transactionPropagator;
+
+  @Before
+  public void before() {
+    try {
+      transactionPropagator = new JTATransactionPropagator(new GeronimoTransactionManager());
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    phaseProfiler = new PhaseProfiler(1);
+    transactionPropagator.setPhaseProfiler(phaseProfiler);
+  }
+
+  private void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testPhasesAreAttributedToCallSite() throws IOException {
+    String callSite = CALL_SITE_PREFIX + "testPhasesAreAttributedToCallSite";
+    transactionPropagator.required(() -> {
+      sleep(5);
+      transactionPropagator.requiresNew(() -> sleep(1));
+    });
+    try {
+      transactionPropagator.required(() -> {
+        throw new NumberFormatException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(0, e.getSuppressed().length);
+    }
+
+    Assert.assertEquals(2, phaseProfiler.getSampleCount(callSite));
+    Assert.assertTrue(phaseProfiler.getPhaseNanos(callSite,
+        TransactionPhase.CALLBACK) >= TimeUnit.MILLISECONDS.toNanos(5));
+    Assert.assertTrue(phaseProfiler.getPhaseNanos(callSite, TransactionPhase.BEGIN) > 0);
+    Assert.assertTrue(phaseProfiler.getPhaseNanos(callSite, TransactionPhase.ROLLBACK) > 0);
+
+    String nestedCallSite = PhaseProfilerTest.class.getName()
+        + ".lambda$testPhasesAreAttributedToCallSite$";
+    StringWriter writer = new StringWriter();
+    phaseProfiler.writeCollapsedStacks(writer);
+    String collapsedStacks = writer.toString();
+    Assert.assertTrue(collapsedStacks, collapsedStacks.contains(callSite + ";callback "));
+    Assert.assertTrue(collapsedStacks, collapsedStacks.contains(nestedCallSite));
+
+    phaseProfiler.reset();
+    Assert.assertEquals(0, phaseProfiler.getSampleCount(callSite));
+  }
+}
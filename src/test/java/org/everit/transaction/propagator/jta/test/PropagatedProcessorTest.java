@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.function.Supplier;
+
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropagatedProcessorTest {
+
+  /**
+   * Implementation that returns the status of the current transaction.
+   */
+  private class StatusService implements PropagatedService<String> {
+
+    @Override
+    public int countArguments(final String... arguments) {
+      return arguments.length;
+    }
+
+    @Override
+    public String echo(final String value) {
+      return value + getStatus();
+    }
+
+    @Override
+    public int mandatory() {
+      return getStatus();
+    }
+
+    @Override
+    public void never(final Runnable action) {
+      action.run();
+    }
+
+    @Override
+    public <R> R readOnly(final Supplier<R> callback) {
+      return callback.get();
+    }
+
+    @Override
+    public int required() {
+      return getStatus();
+    }
+
+    @Override
+    public int requiresNew() {
+      return getStatus();
+    }
+  }
+
+  private PropagatedService<String> service;
+
+  private TransactionManager transactionManager;
+
+  private JTATransactionPropagator transactionPropagator;
+
+  @Before
+  public void before() {
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+    service = new PropagatingPropagatedService<String>(new StatusService(), transactionPropagator);
+  }
+
+  private int getStatus() {
+    try {
+      return transactionManager.getStatus();
+    } catch (SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testMethodsArePropagated() {
+    Assert.assertEquals(Status.STATUS_ACTIVE, service.required());
+    Assert.assertEquals(Status.STATUS_ACTIVE, service.requiresNew());
+    Assert.assertEquals(Status.STATUS_NO_TRANSACTION, getStatus());
+    Assert.assertEquals(Integer.valueOf(Status.STATUS_ACTIVE),
+        service.readOnly(() -> getStatus()));
+
+    try {
+      service.mandatory();
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(Status.STATUS_NO_TRANSACTION, getStatus());
+    }
+    Assert.assertEquals(Status.STATUS_ACTIVE,
+        transactionPropagator.required(() -> service.mandatory()).intValue());
+
+    boolean[] called = new boolean[1];
+    service.never(() -> called[0] = true);
+    Assert.assertTrue(called[0]);
+  }
+
+  @Test
+  public void testMethodsWithoutAnnotationAreDelegated() {
+    Assert.assertEquals("status" + Status.STATUS_NO_TRANSACTION, service.echo("status"));
+    Assert.assertEquals(3, service.countArguments("a", "b", "c"));
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.function.Supplier;
+
+import org.everit.transaction.propagator.jta.Propagated;
+import org.everit.transaction.propagator.jta.PropagationMode;
+
+/**
+ * Interface that is processed by the annotation processor in the tests. Every method returns or
+ * records the status of the transaction that the callback runs in.
+ *
+ * @param <T>
+ *          The type of the values of {@link #echo(Object)}.
+ */
+public interface PropagatedService<T> {
+
+  int countArguments(String... arguments);
+
+  T echo(T value);
+
+  @Propagated(PropagationMode.MANDATORY)
+  int mandatory();
+
+  @Propagated(PropagationMode.NEVER)
+  void never(Runnable action);
+
+  @Propagated(PropagationMode.READ_ONLY)
+  <R> R readOnly(Supplier<R> callback);
+
+  @Propagated(PropagationMode.REQUIRED)
+  int required();
+
+  @Propagated(PropagationMode.REQUIRES_NEW)
+  int requiresNew();
+}
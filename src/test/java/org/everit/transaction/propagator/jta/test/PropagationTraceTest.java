@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.PropagationMode;
+import org.everit.transaction.propagator.jta.PropagationOutcome;
+import org.everit.transaction.propagator.jta.PropagationTraceRecord;
+import org.everit.transaction.propagator.jta.PropagationTraceRecorder;
+import org.everit.transaction.propagator.jta.PropagationTraceReplayer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropagationTraceTest {
+
+  private static JTATransactionPropagator createPropagator() {
+    try {
+      return new JTATransactionPropagator(new GeronimoTransactionManager());
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void assertRecord(final PropagationTraceRecord record, final PropagationMode mode,
+      final int depth, final int entryStatus, final PropagationOutcome outcome) {
+    Assert.assertEquals(record.toString(), mode, record.getMode());
+    Assert.assertEquals(record.toString(), depth, record.getDepth());
+    Assert.assertEquals(record.toString(), entryStatus, record.getEntryStatus());
+    Assert.assertEquals(record.toString(), outcome, record.getOutcome());
+  }
+
+  private byte[] recordWorkload() throws IOException {
+    JTATransactionPropagator transactionPropagator = createPropagator();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PropagationTraceRecorder recorder = new PropagationTraceRecorder(out)) {
+      transactionPropagator.setTraceRecorder(recorder);
+      transactionPropagator.required(() -> {
+        sleep(10);
+        transactionPropagator.requiresNew(() -> sleep(1));
+        try {
+          transactionPropagator.never(() -> {
+          });
+          Assert.fail("Exception should have been thrown");
+        } catch (IllegalStateException e) {
+          Assert.assertEquals(0, e.getSuppressed().length);
+        }
+      });
+      try {
+        transactionPropagator.notSupported(() -> {
+          throw new NumberFormatException();
+        });
+        Assert.fail("Exception should have been thrown");
+      } catch (NumberFormatException e) {
+        Assert.assertEquals(0, e.getSuppressed().length);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testRecordAndReplay() throws IOException, InterruptedException {
+    List<PropagationTraceRecord> records =
+        PropagationTraceReplayer.read(new ByteArrayInputStream(recordWorkload()));
+
+    Assert.assertEquals(4, records.size());
+    assertRecord(records.get(0), PropagationMode.REQUIRES_NEW, 1, Status.STATUS_ACTIVE,
+        PropagationOutcome.SUCCESS);
+    assertRecord(records.get(1), PropagationMode.NEVER, 1, Status.STATUS_ACTIVE,
+        PropagationOutcome.PROPAGATION_FAILED);
+    assertRecord(records.get(2), PropagationMode.REQUIRED, 0, Status.STATUS_NO_TRANSACTION,
+        PropagationOutcome.SUCCESS);
+    assertRecord(records.get(3), PropagationMode.NOT_SUPPORTED, 0, Status.STATUS_NO_TRANSACTION,
+        PropagationOutcome.CALLBACK_FAILED);
+    Assert.assertTrue(records.get(2).getCallbackNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+    Assert.assertEquals(0, records.get(1).getCallbackNanos());
+
+    PropagationTraceReplayer replayer = new PropagationTraceReplayer(records);
+    long elapsedNanos = replayer.replay(createPropagator(), 2);
+    Assert.assertTrue(elapsedNanos >= records.get(2).getCallbackNanos());
+    Assert.assertEquals(1, replayer.getFailedCallCount());
+  }
+
+  @Test
+  public void testConcurrentRecording() throws IOException, InterruptedException {
+    JTATransactionPropagator transactionPropagator = createPropagator();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int threadCount = 4;
+    int callCount = 1000;
+    try (PropagationTraceRecorder recorder = new PropagationTraceRecorder(out)) {
+      transactionPropagator.setTraceRecorder(recorder);
+      Thread[] threads = new Thread[threadCount];
+      for (int i = 0; i < threadCount; i++) {
+        threads[i] = new Thread(() -> {
+          for (int j = 0; j < callCount; j++) {
+            transactionPropagator.required(() -> transactionPropagator.requiresNew(() -> null));
+          }
+        });
+        threads[i].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+
+    List<PropagationTraceRecord> records =
+        PropagationTraceReplayer.read(new ByteArrayInputStream(out.toByteArray()));
+    Assert.assertEquals(threadCount * callCount * 2, records.size());
+    Map<Long, Integer> recordIndexByThread = new HashMap<Long, Integer>();
+    for (PropagationTraceRecord record : records) {
+      int index = recordIndexByThread.merge(record.getThreadId(), 1, Integer::sum) - 1;
+      // The records of a thread keep their order: the nested call precedes its parent.
+      Assert.assertEquals((index % 2) == 0 ? PropagationMode.REQUIRES_NEW
+          : PropagationMode.REQUIRED, record.getMode());
+    }
+    Assert.assertEquals(threadCount, recordIndexByThread.size());
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadInvalidTrace() throws IOException {
+    PropagationTraceReplayer.read(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+  }
+
+  @Test
+  public void testSlowStreamDropsRecords() throws IOException {
+    JTATransactionPropagator transactionPropagator = createPropagator();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CountDownLatch streamReleased = new CountDownLatch(1);
+    OutputStream slowStream = new OutputStream() {
+
+      private void awaitRelease() throws InterruptedIOException {
+        try {
+          streamReleased.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        awaitRelease();
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void write(final int b) throws IOException {
+        awaitRelease();
+        out.write(b);
+      }
+    };
+    int callCount = 2000;
+    long lostRecordCount;
+    try (PropagationTraceRecorder recorder = new PropagationTraceRecorder(slowStream, 128)) {
+      transactionPropagator.setTraceRecorder(recorder);
+      for (int i = 0; i < callCount; i++) {
+        transactionPropagator.required(() -> null);
+      }
+      lostRecordCount = recorder.getLostRecordCount();
+      streamReleased.countDown();
+    }
+
+    List<PropagationTraceRecord> records =
+        PropagationTraceReplayer.read(new ByteArrayInputStream(out.toByteArray()));
+    Assert.assertTrue(String.valueOf(lostRecordCount), lostRecordCount > 0);
+    Assert.assertEquals(callCount, records.size() + lostRecordCount);
+  }
+}
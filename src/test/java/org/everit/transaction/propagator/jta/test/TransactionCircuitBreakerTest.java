@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.TransactionCircuitBreaker;
+import org.everit.transaction.propagator.jta.TransactionCircuitOpenException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionCircuitBreakerTest {
+
+  private static final long OPEN_MILLIS = 100;
+
+  private TransactionCircuitBreaker circuitBreaker;
+
+  private GeronimoTransactionManager transactionManager;
+
+  private JTATransactionPropagator transactionPropagator;
+
+  @Before
+  public void before() {
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+    circuitBreaker = new TransactionCircuitBreaker(20, 50, 50, 4, 60000, OPEN_MILLIS, 2);
+    transactionPropagator.setCircuitBreaker(circuitBreaker);
+  }
+
+  private void commitFast() {
+    transactionPropagator.required(() -> null);
+  }
+
+  private void commitSlowly() {
+    transactionPropagator.required(() -> {
+      registerSlowSynchronization();
+      return null;
+    });
+  }
+
+  private void join(final Thread thread) {
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void openCircuit() {
+    for (int i = 0; i < 4; i++) {
+      commitSlowly();
+    }
+    Assert.assertEquals(TransactionCircuitBreaker.State.OPEN, circuitBreaker.getState());
+  }
+
+  private void registerSlowSynchronization() {
+    try {
+      transactionManager.getTransaction().registerSynchronization(new Synchronization() {
+
+        @Override
+        public void afterCompletion(final int status) {
+          // Nothing to do after completion
+        }
+
+        @Override
+        public void beforeCompletion() {
+          sleep(40);
+        }
+      });
+    } catch (IllegalStateException | RollbackException | SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testFastCommitsKeepCircuitClosed() {
+    for (int i = 0; i < 10; i++) {
+      commitFast();
+    }
+    commitSlowly();
+    Assert.assertEquals(TransactionCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testOpenCircuitRejectsTopLevelTransactions() {
+    openCircuit();
+    try {
+      commitFast();
+      Assert.fail("Exception should have been thrown");
+    } catch (TransactionCircuitOpenException e) {
+      Assert.assertEquals(TransactionCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+    // Calls that do not start a transaction are not affected
+    Assert.assertEquals("ok", transactionPropagator.supports(() -> "ok"));
+  }
+
+  @Test
+  public void testProbesCloseCircuit() {
+    openCircuit();
+    sleep(OPEN_MILLIS + 10);
+
+    AtomicReference<RuntimeException> concurrentResult = new AtomicReference<RuntimeException>();
+    transactionPropagator.required(() -> {
+      Assert.assertEquals(TransactionCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+      // The first call gets the last probe permit, the second one is rejected
+      Thread thread = new Thread(() -> {
+        try {
+          commitFast();
+          commitFast();
+        } catch (RuntimeException e) {
+          concurrentResult.set(e);
+        }
+      });
+      thread.start();
+      join(thread);
+
+      // The nested transaction is not rejected, but it is not a probe either
+      transactionPropagator.requiresNew(() -> null);
+      Assert.assertEquals(TransactionCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+      return null;
+    });
+
+    Assert.assertTrue(String.valueOf(concurrentResult.get()),
+        concurrentResult.get() instanceof TransactionCircuitOpenException);
+    Assert.assertEquals(TransactionCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    commitFast();
+  }
+
+  @Test
+  public void testReadOnlyProbesGiveTheirPermitBack() {
+    openCircuit();
+    sleep(OPEN_MILLIS + 10);
+    transactionPropagator.readOnly(() -> null);
+    transactionPropagator.readOnly(() -> null);
+    try {
+      transactionPropagator.required(() -> {
+        throw new NumberFormatException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(TransactionCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    }
+    commitFast();
+    commitFast();
+    Assert.assertEquals(TransactionCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testRejectedCallsDoNotConsumeReturnedPermits() throws InterruptedException {
+    openCircuit();
+    sleep(OPEN_MILLIS + 10);
+
+    AtomicReference<RuntimeException> reuseResult = new AtomicReference<RuntimeException>();
+    transactionPropagator.required(() -> {
+      CountDownLatch probeStarted = new CountDownLatch(1);
+      CountDownLatch probeReleased = new CountDownLatch(1);
+      Thread readOnlyProbe = new Thread(() -> transactionPropagator.readOnly(() -> {
+        probeStarted.countDown();
+        try {
+          probeReleased.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+        return null;
+      }));
+      readOnlyProbe.start();
+      try {
+        probeStarted.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+
+      // Both permits are taken, so the concurrent calls are rejected
+      Thread[] rejectedCallers = new Thread[4];
+      for (int i = 0; i < rejectedCallers.length; i++) {
+        rejectedCallers[i] = new Thread(() -> {
+          for (int j = 0; j < 100; j++) {
+            try {
+              commitFast();
+            } catch (TransactionCircuitOpenException e) {
+              // Expected while the probes are running
+            }
+          }
+        });
+        rejectedCallers[i].start();
+      }
+      for (Thread rejectedCaller : rejectedCallers) {
+        join(rejectedCaller);
+      }
+
+      probeReleased.countDown();
+      join(readOnlyProbe);
+
+      // The permit that the read-only probe gave back is taken by the next call
+      Thread reusingCaller = new Thread(() -> {
+        try {
+          commitFast();
+        } catch (RuntimeException e) {
+          reuseResult.set(e);
+        }
+      });
+      reusingCaller.start();
+      join(reusingCaller);
+      return null;
+    });
+
+    Assert.assertNull(reuseResult.get());
+    Assert.assertEquals(TransactionCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testSlowProbeOpensCircuitAgain() {
+    openCircuit();
+    sleep(OPEN_MILLIS + 10);
+    commitSlowly();
+    Assert.assertEquals(TransactionCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    try {
+      commitFast();
+      Assert.fail("Exception should have been thrown");
+    } catch (TransactionCircuitOpenException e) {
+      Assert.assertEquals(TransactionCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+  }
+
+  @Test
+  public void testTransactionStartedBeforeOpenIsNotProbe() {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch opened = new CountDownLatch(1);
+    Thread thread = new Thread(() -> transactionPropagator.required(() -> {
+      started.countDown();
+      try {
+        opened.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      registerSlowSynchronization();
+      return null;
+    }));
+    thread.start();
+    try {
+      started.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    openCircuit();
+    sleep(OPEN_MILLIS + 10);
+
+    transactionPropagator.required(() -> {
+      // The slow commit of the transaction that was started before the circuit opened does not
+      // open the circuit again
+      opened.countDown();
+      join(thread);
+      Assert.assertEquals(TransactionCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+      return null;
+    });
+    Assert.assertEquals(TransactionCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    commitFast();
+    Assert.assertEquals(TransactionCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.PropagationMode;
+import org.everit.transaction.propagator.jta.TransactionEventBus;
+import org.everit.transaction.propagator.jta.TransactionEventSubscription;
+import org.everit.transaction.propagator.jta.TransactionEventType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransactionEventBusTest {
+
+  private JTATransactionPropagator transactionPropagator;
+
+  private JTATransactionPropagator createPropagator(final TransactionEventBus eventBus) {
+    JTATransactionPropagator propagator;
+    try {
+      propagator = new JTATransactionPropagator(new GeronimoTransactionManager());
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    propagator.setEventBus(eventBus);
+    return propagator;
+  }
+
+  private List<String> pollEvents(final TransactionEventSubscription subscription) {
+    List<String> events = new ArrayList<String>();
+    subscription.poll((threadId, type, mode, timestampNanos) -> events
+        .add(type + " " + mode.getModeName()));
+    return events;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCapacityMustBePowerOfTwo() {
+    new TransactionEventBus(12);
+  }
+
+  @Test
+  public void testConcurrentPublishers() throws InterruptedException {
+    TransactionEventBus eventBus = new TransactionEventBus(64);
+    transactionPropagator = createPropagator(eventBus);
+    TransactionEventSubscription subscription = eventBus.subscribe();
+    int threadCount = 4;
+    int callCount = 5000;
+
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < callCount; j++) {
+          transactionPropagator.required(() -> null);
+        }
+      });
+      threads[i].start();
+    }
+
+    Map<Long, long[]> lastTimestampByThread = new HashMap<Long, long[]>();
+    long[] eventCount = new long[1];
+    boolean running = true;
+    while (running) {
+      running = false;
+      for (Thread thread : threads) {
+        running |= thread.isAlive();
+      }
+      subscription.poll((threadId, type, mode, timestampNanos) -> {
+        long[] lastTimestamp =
+            lastTimestampByThread.computeIfAbsent(threadId, (id) -> new long[] { Long.MIN_VALUE });
+        Assert.assertTrue(timestampNanos >= lastTimestamp[0]);
+        lastTimestamp[0] = timestampNanos;
+        Assert.assertEquals(PropagationMode.REQUIRED, mode);
+        eventCount[0]++;
+      });
+    }
+
+    Assert.assertEquals(threadCount * callCount * 2,
+        eventCount[0] + subscription.getLostEventCount());
+  }
+
+  @Test
+  public void testEventsOfNestedCalls() {
+    TransactionEventBus eventBus = new TransactionEventBus(16);
+    transactionPropagator = createPropagator(eventBus);
+    transactionPropagator.required(() -> null);
+    TransactionEventSubscription subscription = eventBus.subscribe();
+
+    transactionPropagator.required(() -> {
+      transactionPropagator.requiresNew(() -> null);
+      return transactionPropagator.notSupported(() -> null);
+    });
+    try {
+      transactionPropagator.required(() -> {
+        throw new NumberFormatException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(0, e.getSuppressed().length);
+    }
+
+    List<String> expectedEvents = new ArrayList<String>();
+    expectedEvents.add(TransactionEventType.BEGIN + " required");
+    expectedEvents.add(TransactionEventType.SUSPEND + " requiresNew");
+    expectedEvents.add(TransactionEventType.BEGIN + " requiresNew");
+    expectedEvents.add(TransactionEventType.COMMIT + " requiresNew");
+    expectedEvents.add(TransactionEventType.RESUME + " requiresNew");
+    expectedEvents.add(TransactionEventType.SUSPEND + " notSupported");
+    expectedEvents.add(TransactionEventType.RESUME + " notSupported");
+    expectedEvents.add(TransactionEventType.COMMIT + " required");
+    expectedEvents.add(TransactionEventType.BEGIN + " required");
+    expectedEvents.add(TransactionEventType.ROLLBACK + " required");
+    Assert.assertEquals(expectedEvents, pollEvents(subscription));
+    Assert.assertEquals(0, subscription.getLostEventCount());
+    Assert.assertTrue(pollEvents(subscription).isEmpty());
+  }
+
+  @Test
+  public void testOverwrittenEventsAreCountedAsLost() {
+    TransactionEventBus eventBus = new TransactionEventBus(4);
+    transactionPropagator = createPropagator(eventBus);
+    TransactionEventSubscription subscription = eventBus.subscribe();
+    for (int i = 0; i < 5; i++) {
+      transactionPropagator.required(() -> null);
+    }
+
+    List<String> events = pollEvents(subscription);
+    Assert.assertEquals(4, events.size());
+    Assert.assertEquals(6, subscription.getLostEventCount());
+    Assert.assertEquals(TransactionEventType.BEGIN + " required", events.get(0));
+  }
+
+  @Test
+  public void testShortLivedThreadsShareRings() throws InterruptedException {
+    TransactionEventBus eventBus = new TransactionEventBus(256, 4);
+    transactionPropagator = createPropagator(eventBus);
+    TransactionEventSubscription subscription = eventBus.subscribe();
+    int threadCount = 100;
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread(() -> transactionPropagator.required(() -> null));
+      thread.start();
+      thread.join();
+    }
+
+    Set<Long> threadIds = new HashSet<Long>();
+    int eventCount = subscription.poll((threadId, type, mode, timestampNanos) -> threadIds
+        .add(threadId));
+    Assert.assertEquals(threadCount * 2, eventCount);
+    Assert.assertEquals(threadCount, threadIds.size());
+    Assert.assertEquals(4, eventBus.getStripeCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testStripeCountMustBePowerOfTwo() {
+    new TransactionEventBus(16, 3);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.TransactionLocal;
+import org.everit.transaction.propagator.jta.TransactionLocalStorage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionLocalTest {
+
+  private TransactionLocalStorage storage;
+
+  private JTATransactionPropagator transactionPropagator;
+
+  @Before
+  public void before() {
+    TransactionManager transactionManager;
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+    storage = new TransactionLocalStorage(transactionManager);
+  }
+
+  @Test
+  public void testNoTransaction() {
+    TransactionLocal<String> transactionLocal = storage.newTransactionLocal();
+    try {
+      transactionLocal.get();
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(0, storage.getTransactionCount());
+    }
+  }
+
+  @Test
+  public void testValueFollowsTransaction() {
+    TransactionLocal<String> first = storage.newTransactionLocal();
+    transactionPropagator.required(() -> {
+      first.set("outer");
+      TransactionLocal<Integer> second = storage.newTransactionLocal();
+      Assert.assertNull(second.get());
+      second.set(2);
+
+      transactionPropagator.required(() -> Assert.assertEquals("outer", first.get()));
+      transactionPropagator.requiresNew(() -> {
+        Assert.assertNull(first.get());
+        first.set("inner");
+        Assert.assertEquals(2, storage.getTransactionCount());
+      });
+      Assert.assertEquals(1, storage.getTransactionCount());
+
+      Assert.assertEquals("outer", first.get());
+      Assert.assertEquals(Integer.valueOf(2), second.get());
+      first.remove();
+      Assert.assertNull(first.get());
+    });
+    Assert.assertEquals(0, storage.getTransactionCount());
+  }
+
+  @Test
+  public void testValuesAreDroppedOnRollback() {
+    TransactionLocal<String> transactionLocal = storage.newTransactionLocal();
+    try {
+      transactionPropagator.required(() -> {
+        transactionLocal.set("value");
+        throw new NumberFormatException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(0, storage.getTransactionCount());
+    }
+  }
+}
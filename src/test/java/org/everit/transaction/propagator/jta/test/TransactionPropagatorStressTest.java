@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.PropagationMode;
+import org.everit.transaction.unchecked.UncheckedRollbackException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls a shared {@link JTATransactionPropagator} from several threads with randomly nested
+ * propagation modes and failing callbacks and checks after every call that the thread is not left
+ * with a transaction and every enlisted resource is completed.
+ */
+public class TransactionPropagatorStressTest {
+
+  /**
+   * Exception that is thrown by the callbacks on purpose.
+   */
+  private static class InjectedFailure extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * The calls of a single thread.
+   */
+  private class Worker implements Runnable {
+
+    private final List<RememberLastCallXAResource> enlistedResources =
+        new ArrayList<RememberLastCallXAResource>();
+
+    private final CountDownLatch finishLatch;
+
+    private final Random random;
+
+    private final CountDownLatch startLatch;
+
+    private final int threadIndex;
+
+    Worker(final int threadIndex, final long seed, final CountDownLatch startLatch,
+        final CountDownLatch finishLatch) {
+      this.threadIndex = threadIndex;
+      random = new Random(seed);
+      this.startLatch = startLatch;
+      this.finishLatch = finishLatch;
+    }
+
+    private void checkInvariants(final int operationIndex) {
+      int status = getStatus();
+      if (status != Status.STATUS_NO_TRANSACTION) {
+        failures.add("Thread " + threadIndex + " operation " + operationIndex
+            + ": transaction left associated with status " + status);
+        try {
+          transactionManager.suspend();
+        } catch (SystemException e) {
+          failures.add(e.toString());
+        }
+      }
+      for (RememberLastCallXAResource resource : enlistedResources) {
+        int resourceStatus = resource.getStatus();
+        if ((resourceStatus != Status.STATUS_COMMITTED)
+            && (resourceStatus != Status.STATUS_ROLLEDBACK)) {
+          failures.add("Thread " + threadIndex + " operation " + operationIndex
+              + ": resource left with status " + resourceStatus);
+        }
+      }
+      enlistedResources.clear();
+    }
+
+    private void enlistResourceIfActive() {
+      if (getStatus() != Status.STATUS_ACTIVE) {
+        return;
+      }
+      RememberLastCallXAResource resource = new RememberLastCallXAResource();
+      try {
+        Transaction transaction = transactionManager.getTransaction();
+        transaction.enlistResource(resource);
+      } catch (IllegalStateException | RollbackException | SystemException e) {
+        failures.add("Thread " + threadIndex + ": cannot enlist resource: " + e);
+        return;
+      }
+      enlistedResources.add(resource);
+    }
+
+    private Integer nestedCall(final int depth) {
+      PropagationMode mode = MODES[random.nextInt(MODES.length)];
+      Supplier<Integer> callback = () -> {
+        enlistResourceIfActive();
+        if ((depth < MAX_DEPTH) && random.nextBoolean()) {
+          try {
+            nestedCall(depth + 1);
+          } catch (RuntimeException e) {
+            if (random.nextBoolean()) {
+              throw e;
+            }
+          }
+        }
+        if (random.nextInt(FAILURE_RATE_DIVISOR) == 0) {
+          throw new InjectedFailure();
+        }
+        return depth;
+      };
+
+      switch (mode) {
+        case MANDATORY:
+          return transactionPropagator.mandatory(callback);
+        case NEVER:
+          return transactionPropagator.never(callback);
+        case NOT_SUPPORTED:
+          return transactionPropagator.notSupported(callback);
+        case REQUIRED:
+          return transactionPropagator.required(callback);
+        case REQUIRES_NEW:
+          return transactionPropagator.requiresNew(callback);
+        case READ_ONLY:
+          return transactionPropagator.readOnly(callback);
+        default:
+          return transactionPropagator.supports(callback);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        startLatch.await();
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+          try {
+            nestedCall(0);
+          } catch (InjectedFailure | IllegalStateException | UncheckedRollbackException e) {
+            // Expected outcomes of random nesting and injected failures
+          } catch (RuntimeException | Error e) {
+            failures.add("Thread " + threadIndex + " operation " + i + ": unexpected " + e);
+          }
+          checkInvariants(i);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failures.add("Thread " + threadIndex + " interrupted");
+      } finally {
+        finishLatch.countDown();
+      }
+    }
+  }
+
+  private static final int FAILURE_RATE_DIVISOR = 10;
+
+  private static final int MAX_DEPTH = 3;
+
+  private static final PropagationMode[] MODES = PropagationMode.values();
+
+  private static final int OPERATIONS_PER_THREAD = 2000;
+
+  private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+
+  private final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+
+  private TransactionManager transactionManager;
+
+  private JTATransactionPropagator transactionPropagator;
+
+  @Before
+  public void before() {
+    try {
+      transactionManager = new GeronimoTransactionManager();
+    } catch (XAException e) {
+      throw new RuntimeException(e);
+    }
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+  }
+
+  private int getStatus() {
+    try {
+      return transactionManager.getStatus();
+    } catch (SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void runWithThreads(final int threadCount, final long seed)
+      throws InterruptedException {
+    CountDownLatch startLatch = new CountDownLatch(1);
+    CountDownLatch finishLatch = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread(new Worker(i, seed + i, startLatch, finishLatch),
+          "propagator-stress-" + threadCount + "-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    long startNanos = System.nanoTime();
+    startLatch.countDown();
+    Assert.assertTrue("Stress test threads did not finish",
+        finishLatch.await(2, TimeUnit.MINUTES));
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    long operationCount = (long) threadCount * OPERATIONS_PER_THREAD;
+    System.out.println(String.format("Propagator stress test: threads=%d, operations=%d, "
+        + "throughput=%.0f ops/s, seed=%d", threadCount, operationCount,
+        (operationCount * (double) TimeUnit.SECONDS.toNanos(1)) / elapsedNanos, seed));
+  }
+
+  @Test
+  public void testConcurrentRandomNesting() throws InterruptedException {
+    long seed = Long.getLong("propagator.stress.seed", System.nanoTime());
+    for (int threadCount : THREAD_COUNTS) {
+      runWithThreads(threadCount, seed);
+      if (!failures.isEmpty()) {
+        Assert.fail("Invariants violated with " + threadCount + " threads (seed " + seed + "): "
+            + failures.size() + " failures, first: " + failures.peek());
+      }
+    }
+  }
+}
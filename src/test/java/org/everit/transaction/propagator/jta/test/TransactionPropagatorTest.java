@@ -577,4 +577,51 @@ public class TransactionPropagatorTest {
       Assert.assertEquals(RuntimeException.class, e.getClass());
     }
   }
+
+  @Test
+  public void test28ReadOnlyNoTransactionRollsBack() {
+    final RememberLastCallXAResource lastTrStatus = new RememberLastCallXAResource();
+    Integer result = ((JTATransactionPropagator) transactionPropagator).readOnly(() -> {
+      enlistResource(lastTrStatus);
+      Assert.assertEquals(Status.STATUS_ACTIVE, getStatus());
+      return 1;
+    });
+    Assert.assertEquals(1, result.intValue());
+    Assert.assertEquals(Status.STATUS_ROLLEDBACK, lastTrStatus.getStatus());
+    Assert.assertEquals(Status.STATUS_NO_TRANSACTION, getStatus());
+  }
+
+  @Test
+  public void test29ReadOnlyOngoingTransactionJoins() {
+    final RememberLastCallXAResource outerLastTrStatus = new RememberLastCallXAResource();
+    final RememberLastCallXAResource lastTrStatus = new RememberLastCallXAResource();
+    transactionPropagator.required(() -> {
+      enlistResource(outerLastTrStatus);
+      ((JTATransactionPropagator) transactionPropagator).readOnly(() -> {
+        enlistResource(lastTrStatus);
+        byte[] outerXID = outerLastTrStatus.getXid().getGlobalTransactionId();
+        byte[] innerXID = lastTrStatus.getXid().getGlobalTransactionId();
+        Assert.assertTrue(Arrays.equals(outerXID, innerXID));
+      });
+      Assert.assertEquals(XAResourceStatus.STATUS_START, lastTrStatus.getStatus());
+    });
+    Assert.assertEquals(Status.STATUS_COMMITTED, lastTrStatus.getStatus());
+  }
+
+  @Test
+  public void test30ReadOnlyWriteDetected() {
+    final RememberLastCallXAResource lastTrStatus = new RememberLastCallXAResource();
+    JTATransactionPropagator jtaTransactionPropagator =
+        (JTATransactionPropagator) transactionPropagator;
+    jtaTransactionPropagator.setReadOnlyWriteDetector((transaction) -> transaction != null);
+    try {
+      jtaTransactionPropagator.readOnly(() -> {
+        enlistResource(lastTrStatus);
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(Status.STATUS_ROLLEDBACK, lastTrStatus.getStatus());
+      Assert.assertEquals(Status.STATUS_NO_TRANSACTION, getStatus());
+    }
+  }
 }
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.transaction.propagator.jta.test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+import org.everit.transaction.propagator.jta.JTATransactionPropagator;
+import org.everit.transaction.propagator.jta.LatencySketch;
+import org.everit.transaction.propagator.jta.PropagationMode;
+
+/**
+ * Standalone load generator that drives {@link JTATransactionPropagator} with a configurable mix
+ * of propagation modes, nesting depths, callback durations, failure rates and enlisted resources,
+ * and prints the throughput and the latency percentiles of every reporting interval.
+ *
+ * <p>
+ * The workload is configured with system properties or with a properties file passed as the first
+ * argument. It can be started from the build with <code>mvn -Pworkload test -DskipTests</code>.
+ * The supported properties and their defaults:
+ * <ul>
+ * <li><code>workload.transactionManagerClass</code>: class of the {@link TransactionManager} with
+ * a public no-argument constructor (Geronimo).</li>
+ * <li><code>workload.modeMix</code>: weights of the top-level propagation modes
+ * (<code>required=70,requiresNew=20,supports=10</code>).</li>
+ * <li><code>workload.nestedModeMix</code>: weights of the nested propagation modes (same as the
+ * top-level mix).</li>
+ * <li><code>workload.maxDepth</code>: maximum nesting depth (2).</li>
+ * <li><code>workload.nestingProbability</code>: probability that a callback makes a nested call
+ * (0.3).</li>
+ * <li><code>workload.callbackMicros</code>: mean duration of a callback; the durations are
+ * exponentially distributed (200).</li>
+ * <li><code>workload.failureRate</code>: probability that a callback throws an exception
+ * (0.01).</li>
+ * <li><code>workload.resources</code>: number of resources that are enlisted by a callback that
+ * runs in a transaction (1).</li>
+ * <li><code>workload.threads</code>: number of calling threads (8).</li>
+ * <li><code>workload.durationSeconds</code>: duration of the measurement (60).</li>
+ * <li><code>workload.warmupSeconds</code>: duration of the warmup that is not reported (10).</li>
+ * <li><code>workload.reportIntervalSeconds</code>: length of a reporting interval (5).</li>
+ * </ul>
+ */
+public final class WorkloadGenerator {
+
+  /**
+   * Exception that is thrown by the callbacks on purpose.
+   */
+  private static class InjectedFailure extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Weighted random selection of propagation modes.
+   */
+  private static final class ModeMix {
+
+    private final int[] cumulativeWeights;
+
+    private final PropagationMode[] modes;
+
+    ModeMix(final String definition) {
+      List<PropagationMode> modeList = new ArrayList<PropagationMode>();
+      List<Integer> weightList = new ArrayList<Integer>();
+      int totalWeight = 0;
+      for (String entry : definition.split(",")) {
+        String[] nameAndWeight = entry.trim().split("=");
+        if (nameAndWeight.length != 2) {
+          throw new IllegalArgumentException("Invalid mode mix entry: " + entry);
+        }
+        int weight = Integer.parseInt(nameAndWeight[1].trim());
+        if (weight > 0) {
+          totalWeight += weight;
+          modeList.add(PropagationMode.fromModeName(nameAndWeight[0].trim()));
+          weightList.add(totalWeight);
+        }
+      }
+      if (modeList.isEmpty()) {
+        throw new IllegalArgumentException("Mode mix has no positive weight: " + definition);
+      }
+      modes = modeList.toArray(new PropagationMode[modeList.size()]);
+      cumulativeWeights = new int[weightList.size()];
+      for (int i = 0; i < cumulativeWeights.length; i++) {
+        cumulativeWeights[i] = weightList.get(i);
+      }
+    }
+
+    PropagationMode next() {
+      int value = ThreadLocalRandom.current().nextInt(cumulativeWeights[modes.length - 1]);
+      for (int i = 0; i < modes.length; i++) {
+        if (value < cumulativeWeights[i]) {
+          return modes[i];
+        }
+      }
+      return modes[modes.length - 1];
+    }
+  }
+
+  private static final String DEFAULT_TRANSACTION_MANAGER_CLASS =
+      "org.apache.geronimo.transaction.manager.GeronimoTransactionManager";
+
+  private static final String PROPERTY_PREFIX = "workload.";
+
+  private static double getDouble(final Properties properties, final String key,
+      final double defaultValue) {
+    return Double.parseDouble(getString(properties, key, String.valueOf(defaultValue)));
+  }
+
+  private static int getInt(final Properties properties, final String key,
+      final int defaultValue) {
+    return Integer.parseInt(getString(properties, key, String.valueOf(defaultValue)));
+  }
+
+  private static String getString(final Properties properties, final String key,
+      final String defaultValue) {
+    String value = properties.getProperty(PROPERTY_PREFIX + key);
+    if (value == null) {
+      value = System.getProperty(PROPERTY_PREFIX + key);
+    }
+    return (value == null) ? defaultValue : value.trim();
+  }
+
+  /**
+   * Runs the workload.
+   *
+   * @param args
+   *          Optional path of a properties file with the workload definition.
+   * @throws Exception
+   *           if the workload cannot be started.
+   */
+  public static void main(final String[] args) throws Exception {
+    Properties properties = new Properties();
+    if (args.length > 0) {
+      try (InputStream in = new FileInputStream(args[0])) {
+        properties.load(in);
+      }
+    }
+    new WorkloadGenerator(properties).run();
+  }
+
+  private final int callbackMicros;
+
+  private final LongAdder completedCount = new LongAdder();
+
+  private final int durationSeconds;
+
+  private final LongAdder failedCount = new LongAdder();
+
+  private final double failureRate;
+
+  private final AtomicReference<LatencySketch> intervalSketch =
+      new AtomicReference<LatencySketch>(new LatencySketch());
+
+  private final int maxDepth;
+
+  private final ModeMix modeMix;
+
+  private final ModeMix nestedModeMix;
+
+  private final double nestingProbability;
+
+  private final LongAdder rejectedCount = new LongAdder();
+
+  private final int reportIntervalSeconds;
+
+  private final int resourceCount;
+
+  private final AtomicBoolean running = new AtomicBoolean(true);
+
+  private final int threadCount;
+
+  private final TransactionManager transactionManager;
+
+  private final JTATransactionPropagator transactionPropagator;
+
+  private final int warmupSeconds;
+
+  private WorkloadGenerator(final Properties properties) throws ReflectiveOperationException {
+    String transactionManagerClass =
+        getString(properties, "transactionManagerClass", DEFAULT_TRANSACTION_MANAGER_CLASS);
+    transactionManager = (TransactionManager) Class.forName(transactionManagerClass)
+        .getConstructor().newInstance();
+    transactionPropagator = new JTATransactionPropagator(transactionManager);
+
+    String modeMixDefinition =
+        getString(properties, "modeMix", "required=70,requiresNew=20,supports=10");
+    modeMix = new ModeMix(modeMixDefinition);
+    nestedModeMix = new ModeMix(getString(properties, "nestedModeMix", modeMixDefinition));
+    maxDepth = getInt(properties, "maxDepth", 2);
+    nestingProbability = getDouble(properties, "nestingProbability", 0.3);
+    callbackMicros = getInt(properties, "callbackMicros", 200);
+    failureRate = getDouble(properties, "failureRate", 0.01);
+    resourceCount = getInt(properties, "resources", 1);
+    threadCount = getInt(properties, "threads", 8);
+    durationSeconds = getInt(properties, "durationSeconds", 60);
+    warmupSeconds = getInt(properties, "warmupSeconds", 10);
+    reportIntervalSeconds = getInt(properties, "reportIntervalSeconds", 5);
+  }
+
+  private Object call(final PropagationMode mode, final int depth) {
+    Supplier<Object> callback = () -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      enlistResources();
+      long callbackNanos = (long) (-Math.log(1 - random.nextDouble())
+          * TimeUnit.MICROSECONDS.toNanos(callbackMicros));
+      if ((depth < maxDepth) && (random.nextDouble() < nestingProbability)) {
+        long halfNanos = callbackNanos / 2;
+        LockSupport.parkNanos(halfNanos);
+        call(nestedModeMix.next(), depth + 1);
+        LockSupport.parkNanos(callbackNanos - halfNanos);
+      } else {
+        LockSupport.parkNanos(callbackNanos);
+      }
+      if (random.nextDouble() < failureRate) {
+        throw new InjectedFailure();
+      }
+      return null;
+    };
+
+    switch (mode) {
+      case MANDATORY:
+        return transactionPropagator.mandatory(callback);
+      case NEVER:
+        return transactionPropagator.never(callback);
+      case NOT_SUPPORTED:
+        return transactionPropagator.notSupported(callback);
+      case REQUIRED:
+        return transactionPropagator.required(callback);
+      case REQUIRES_NEW:
+        return transactionPropagator.requiresNew(callback);
+      case READ_ONLY:
+        return transactionPropagator.readOnly(callback);
+      default:
+        return transactionPropagator.supports(callback);
+    }
+  }
+
+  private void enlistResources() {
+    try {
+      if (transactionManager.getStatus() != Status.STATUS_ACTIVE) {
+        return;
+      }
+      for (int i = 0; i < resourceCount; i++) {
+        transactionManager.getTransaction().enlistResource(new RememberLastCallXAResource());
+      }
+    } catch (RollbackException | SystemException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void printReport(final String label, final long intervalNanos,
+      final LatencySketch sketch, final long completed, final long failed, final long rejected) {
+    double seconds = intervalNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    System.out.println(String.format(
+        "%s: throughput=%.0f ops/s, p50=%d us, p99=%d us, p999=%d us, completed=%d, "
+            + "failed=%d, rejected=%d",
+        label, (completed + failed + rejected) / seconds, toMicros(sketch.getQuantile(0.5)),
+        toMicros(sketch.getQuantile(0.99)), toMicros(sketch.getQuantile(0.999)), completed,
+        failed, rejected));
+  }
+
+  private void run() throws InterruptedException {
+    CountDownLatch finishLatch = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          while (running.get()) {
+            long startNanos = System.nanoTime();
+            try {
+              call(modeMix.next(), 0);
+              completedCount.increment();
+            } catch (IllegalStateException e) {
+              // The mode is not allowed in the status of the current transaction
+              rejectedCount.increment();
+            } catch (RuntimeException e) {
+              failedCount.increment();
+            }
+            intervalSketch.get().record(System.nanoTime() - startNanos);
+          }
+        } finally {
+          finishLatch.countDown();
+        }
+      }, "workload-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    System.out.println("Warming up for " + warmupSeconds + " s with " + threadCount
+        + " threads");
+    TimeUnit.SECONDS.sleep(warmupSeconds);
+
+    LatencySketch totalSketch = new LatencySketch();
+    long totalCompleted = 0;
+    long totalFailed = 0;
+    long totalRejected = 0;
+    long measurementStartNanos = System.nanoTime();
+    long intervalStartNanos = measurementStartNanos;
+    intervalSketch.set(new LatencySketch());
+    completedCount.reset();
+    failedCount.reset();
+    rejectedCount.reset();
+    int intervalCount = Math.max(1, durationSeconds / reportIntervalSeconds);
+    for (int i = 1; i <= intervalCount; i++) {
+      TimeUnit.SECONDS.sleep(reportIntervalSeconds);
+      LatencySketch sketch = intervalSketch.getAndSet(new LatencySketch());
+      long completed = completedCount.sumThenReset();
+      long failed = failedCount.sumThenReset();
+      long rejected = rejectedCount.sumThenReset();
+      long now = System.nanoTime();
+      printReport("Interval " + i, now - intervalStartNanos, sketch, completed, failed,
+          rejected);
+      intervalStartNanos = now;
+      totalSketch.merge(sketch);
+      totalCompleted += completed;
+      totalFailed += failed;
+      totalRejected += rejected;
+    }
+    running.set(false);
+    printReport("Total", System.nanoTime() - measurementStartNanos, totalSketch, totalCompleted,
+        totalFailed, totalRejected);
+    finishLatch.await();
+  }
+
+  private long toMicros(final long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}